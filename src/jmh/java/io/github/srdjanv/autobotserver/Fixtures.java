@@ -0,0 +1,80 @@
+package io.github.srdjanv.autobotserver;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Random;
+
+/**
+ * Replies shaped like the ones of a bot, sized by the number of listings or items.
+ * Seeded, so every fork benchmarks the same bytes.
+ */
+public final class Fixtures {
+    private Fixtures() {
+    }
+
+    public static String sku(int index) {
+        //defindex;quality, with killstreak and australium variants like a real pricelist
+        int defindex = 5000 + index / 4;
+        return switch (index % 4) {
+            case 0 -> defindex + ";6";
+            case 1 -> defindex + ";11;kt-3";
+            case 2 -> defindex + ";6;australium";
+            default -> defindex + ";5;u" + (700 + index % 100);
+        };
+    }
+
+    public static ObjectNode pricelist(ObjectMapper mapper, int listings) {
+        Random random = new Random(listings);
+        ObjectNode reply = mapper.createObjectNode();
+        reply.put("success", true);
+        ArrayNode data = reply.putArray("data");
+        for (int i = 0; i < listings; i++) {
+            ObjectNode listing = data.addObject();
+            listing.put("sku", sku(i));
+            listing.put("enabled", true);
+            listing.put("autoprice", random.nextBoolean());
+            listing.put("min", 0);
+            listing.put("max", 1 + random.nextInt(3));
+            listing.put("intent", 2);
+            listing.putObject("buy").put("keys", random.nextInt(5)).put("metal", random.nextInt(6000) / 100.0);
+            listing.putObject("sell").put("keys", random.nextInt(5)).put("metal", random.nextInt(6000) / 100.0);
+            listing.put("promoted", 0);
+            listing.put("group", "all");
+            listing.putObject("note").putNull("buy").putNull("sell");
+            listing.put("isPartialPriced", false);
+            listing.put("time", 1_700_000_000L + random.nextInt(10_000_000));
+        }
+        return reply;
+    }
+
+    /**
+     * @return the inventory as sku to asset ids, the way the bot groups it
+     */
+    public static ObjectNode inventory(ObjectMapper mapper, int items) {
+        Random random = new Random(items);
+        ObjectNode reply = mapper.createObjectNode();
+        reply.put("success", true);
+        ObjectNode data = reply.putObject("data");
+        int skus = Math.max(items / 8, 1);
+        for (int i = 0; i < items; i++) {
+            ArrayNode assets = (ArrayNode) data.get(sku(i % skus));
+            if (assets == null) {
+                assets = data.putArray(sku(i % skus));
+            }
+            assets.add(Long.toString(10_000_000_000L + random.nextInt(Integer.MAX_VALUE)));
+        }
+        return reply;
+    }
+
+    /**
+     * @return the reply wrapped in the envelope the bot sends it in
+     */
+    public static ObjectNode envelope(ObjectMapper mapper, String type, ObjectNode reply) {
+        ObjectNode envelope = mapper.createObjectNode();
+        envelope.put("type", type);
+        envelope.set("data", reply);
+        return envelope;
+    }
+}
@@ -0,0 +1,156 @@
+package io.github.srdjanv.autobotserver.ipc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.github.srdjanv.autobotserver.Config;
+import io.github.srdjanv.autobotserver.Fixtures;
+import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
+import io.github.srdjanv.autobotserver.ipc.messages.StreamMessageListener;
+import io.github.srdjanv.autobotserver.javalin.CachedResponse;
+import io.github.srdjanv.autobotserver.metrics.Metrics;
+import org.newsclub.net.unix.AFUNIXSocketChannel;
+import org.newsclub.net.unix.AFUNIXSocketPair;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receive path of a large push, from socket reads to frames and on to the listener that caches the reply.
+ * Frames go through a real {@link SocketMessageReceiver}, only the socket reads are replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameDecoderBenchmark {
+    //bytes a non-blocking socket read usually returns
+    private static final int READ_SIZE = 64 * 1024;
+
+    @Param({"pricelist", "inventory"})
+    private String reply;
+    //pricelist listings or inventory items, the large sizes are multiple MB
+    @Param({"2000", "50000"})
+    private int size;
+    @Param({"TEXT", "SMILE"})
+    private IpcProtocol protocol;
+    //false dispatches the way the server does while a request waits on the reply or when streaming dispatch is disabled
+    @Param({"true", "false"})
+    private boolean streamingDispatch;
+
+    private ObjectMapper mapper;
+    private ObjectMapper frameMapper;
+    private byte[] stream;
+
+    private Config config;
+    private IpcEventLoop eventLoop;
+    private ScheduledExecutorService timeoutScheduler;
+    private AFUNIXSocketPair<AFUNIXSocketChannel> socketPair;
+    private IpcBotHandler ipcBotHandler;
+    private SocketMessageReceiver receiver;
+    //set by the listener, the way the controller caches a push
+    private CachedResponse copied;
+
+    @Setup
+    public void setup() throws Exception {
+        mapper = new ObjectMapper();
+        frameMapper = protocol == IpcProtocol.SMILE ? new ObjectMapper(new SmileFactory()) : mapper;
+        ObjectNode data = reply.equals("pricelist") ? Fixtures.pricelist(mapper, size) : Fixtures.inventory(mapper, size);
+        byte[] frame = frameMapper.writeValueAsBytes(Fixtures.envelope(mapper, reply, data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frame.length + FrameDecoder.LENGTH_PREFIX_SIZE);
+        if (protocol.lengthPrefixed()) {
+            out.write(ByteBuffer.allocate(FrameDecoder.LENGTH_PREFIX_SIZE).putInt(frame.length).array());
+            out.write(frame);
+        } else {
+            out.write(frame);
+            out.write('\f');
+        }
+        stream = out.toByteArray();
+
+        config = new Config(Files.createTempDirectory("frame-decoder-benchmark"));
+        config.fileConfig().set("ipc_streaming_dispatch", streamingDispatch);
+        eventLoop = new IpcEventLoop("IPC benchmark event loop");
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor();
+        socketPair = AFUNIXSocketPair.open();
+        ipcBotHandler = new IpcBotHandler(config, mapper, frameMapper, new Metrics(), socketPair.getSocket1(), eventLoop, timeoutScheduler);
+        IpcMessage type = IpcMessage.fromReceive(reply).getFirst();
+        Map<IpcMessage, Collection<StreamMessageListener>> streamHandlers = Map.of(type, List.of(new StreamMessageListener(type,
+                (parser, handler) -> copied = CachedResponse.copyOf(mapper, parser))));
+        receiver = new SocketMessageReceiver(ipcBotHandler, config, mapper, socketPair.getSocket1(), Map.of(), streamHandlers);
+        receiver.switchProtocol(protocol, frameMapper);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        receiver.close();
+        ipcBotHandler.close();
+        socketPair.getSocket2().close();
+        timeoutScheduler.shutdownNow();
+        eventLoop.close();
+        config.close();
+    }
+
+    private FrameDecoder decoder() {
+        FrameDecoder decoder = new FrameDecoder('\f', READ_SIZE, 64 * 1024 * 1024, false);
+        if (protocol.lengthPrefixed()) {
+            decoder.switchToLengthPrefixed();
+        }
+        return decoder;
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole) throws IOException {
+        decoder().readFrom(new SocketReads(stream), frame -> blackhole.consume(frame.remaining()));
+    }
+
+    /**
+     * A push read, decoded and dispatched by the receiver of the connection, which keeps its decoder between pushes.
+     */
+    @Benchmark
+    public CachedResponse splitAndDispatch() throws IOException {
+        receiver.readMessages(new SocketReads(stream));
+        return copied;
+    }
+
+    /**
+     * Hands out the stream in socket sized reads, then reports nothing to read like a drained non-blocking socket.
+     */
+    private static final class SocketReads implements ReadableByteChannel {
+        private final ByteBuffer source;
+
+        private SocketReads(byte[] bytes) {
+            this.source = ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!source.hasRemaining()) {
+                return 0;
+            }
+            int length = Math.min(Math.min(dst.remaining(), READ_SIZE), source.remaining());
+            dst.put(dst.position(), source, source.position(), length);
+            dst.position(dst.position() + length);
+            source.position(source.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package io.github.srdjanv.autobotserver.ipc;
+
+import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Type lookups done for every message sent and every frame received.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IpcMessageBenchmark {
+    private String[] sendTypes;
+    //every reply type and one a newer bot could send
+    private String[] receiveTypes;
+
+    @Setup
+    public void setup() {
+        sendTypes = Arrays.stream(IpcMessage.values()).map(IpcMessage::send).toArray(String[]::new);
+        receiveTypes = Arrays.stream(IpcMessage.values()).map(IpcMessage::receive).distinct().toArray(String[]::new);
+        receiveTypes = Arrays.copyOf(receiveTypes, receiveTypes.length + 1);
+        receiveTypes[receiveTypes.length - 1] = "unknownType";
+    }
+
+    @Benchmark
+    public void fromSend(Blackhole blackhole) {
+        for (String type : sendTypes) {
+            blackhole.consume(IpcMessage.fromSend(type));
+        }
+    }
+
+    @Benchmark
+    public void fromReceive(Blackhole blackhole) {
+        for (String type : receiveTypes) {
+            blackhole.consume(IpcMessage.fromReceive(type));
+        }
+    }
+}
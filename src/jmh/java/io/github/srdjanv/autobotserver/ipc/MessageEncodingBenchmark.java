@@ -0,0 +1,59 @@
+package io.github.srdjanv.autobotserver.ipc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.github.srdjanv.autobotserver.Fixtures;
+import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
+import io.github.srdjanv.autobotserver.ipc.messages.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of outgoing messages into one reused buffer, the way {@link SocketMessageSender} builds a batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageEncodingBenchmark {
+    @Param({"TEXT", "SMILE"})
+    private IpcProtocol protocol;
+
+    private ObjectMapper frameMapper;
+    private final SocketMessageSender.ByteBufferOutputStream out = new SocketMessageSender.ByteBufferOutputStream(8 * 1024);
+    private Message request;
+    //an items/batch request worth of listings
+    private List<Message> batch;
+
+    @Setup
+    public void setup() {
+        ObjectMapper mapper = new ObjectMapper();
+        frameMapper = protocol == IpcProtocol.SMILE ? new ObjectMapper(new SmileFactory()) : mapper;
+        request = new Message(IpcMessage.Pricelist).withId(1);
+        batch = new ArrayList<>();
+        long id = 0;
+        for (JsonNode listing : Fixtures.pricelist(mapper, 256).get("data")) {
+            batch.add(new Message(IpcMessage.Item_Add, listing).withId(++id));
+        }
+    }
+
+    @Benchmark
+    public int request() throws IOException {
+        out.reset();
+        SocketMessageSender.encode(out, request, protocol, frameMapper, '\f');
+        return out.size();
+    }
+
+    @Benchmark
+    public int itemBatch() throws IOException {
+        out.reset();
+        for (Message message : batch) {
+            SocketMessageSender.encode(out, message, protocol, frameMapper, '\f');
+        }
+        return out.size();
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.github.srdjanv.autobotserver.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing parsing of the item routes, from query params and from the json of a batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BotListingBenchmark {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private Map<String, String> queryParams;
+    private ObjectNode listing;
+
+    @Setup
+    public void setup() {
+        //a batch operation, shaped like a listing of the bot
+        listing = (ObjectNode) Fixtures.pricelist(mapper, 1).get("data").get(0);
+        queryParams = new LinkedHashMap<>();
+        queryParams.put("sku", listing.get("sku").asText());
+        queryParams.put("enabled", "true");
+        queryParams.put("autoprice", "false");
+        queryParams.put("min", "0");
+        queryParams.put("max", "2");
+        queryParams.put("intent", "bank");
+        queryParams.put("buy.keys", "1");
+        queryParams.put("buy.metal", "22.33");
+        queryParams.put("sell.keys", "1");
+        queryParams.put("sell.metal", "30.11");
+        queryParams.put("note.buy", "Buying for %price%");
+        queryParams.put("promoted", "0");
+        queryParams.put("group", "all");
+    }
+
+    /**
+     * Includes building the node, as extractBotListing does for every request.
+     */
+    @Benchmark
+    public BotListing transform() {
+        return BotListing.transform(mapper.valueToTree(queryParams));
+    }
+
+    @Benchmark
+    public BotListing transformJson() {
+        return BotListing.transformJson(listing);
+    }
+}
@@ -0,0 +1,69 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.srdjanv.autobotserver.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serving a cached pricelist, the variant {@link BotController} picks for the request headers and the body it writes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CachedResponseBenchmark {
+    //what browsers and most http clients send
+    private static final String ACCEPT_ENCODING = "gzip, deflate, br";
+
+    @Param({"2000", "50000"})
+    private int listings;
+    @Param({"HEAP", "DIRECT", "GZIP"})
+    private CachedResponse.StorageMode storage;
+
+    private CachedResponse cached;
+    //a client that revalidates the gzip variant it got before
+    private String ifNoneMatch;
+
+    @Setup
+    public void setup() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        //the gzip variant is built in the calling thread, so it is ready like on a warm cache
+        cached = CachedResponse.of(mapper, Fixtures.pricelist(mapper, listings))
+                .withGzip(Runnable::run, 0)
+                .compact(storage);
+        ifNoneMatch = "W/" + cached.gzipEtag();
+    }
+
+    /**
+     * A revalidation with the current ETag, answered with a 304.
+     */
+    @Benchmark
+    public BotController.Representation notModified() {
+        return BotController.Representation.select(cached, ACCEPT_ENCODING, ifNoneMatch);
+    }
+
+    /**
+     * A client that accepts gzip gets the precompressed variant.
+     */
+    @Benchmark
+    public int gzip() throws IOException {
+        BotController.Representation representation = BotController.Representation.select(cached, ACCEPT_ENCODING, null);
+        OutputStream.nullOutputStream().write(representation.gzip());
+        return representation.gzip().length;
+    }
+
+    /**
+     * A client without gzip gets the body as is, which gzip storage inflates on the fly.
+     */
+    @Benchmark
+    public long identity() throws IOException {
+        BotController.Representation representation = BotController.Representation.select(cached, null, null);
+        try (InputStream body = cached.stream()) {
+            return representation.etag().length() + body.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.github.srdjanv.autobotserver.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the responses, written once per request for uncached routes and once per load for cached ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseSerializationBenchmark {
+    @Param({"100", "2000", "50000"})
+    private int listings;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ObjectNode pricelist;
+    private CachedResponse cached;
+
+    @Setup
+    public void setup() throws IOException {
+        pricelist = Fixtures.pricelist(mapper, listings);
+        cached = CachedResponse.of(mapper, pricelist);
+    }
+
+    /**
+     * What the uncached routes send.
+     */
+    @Benchmark
+    public String nodeToString() {
+        return pricelist.toString();
+    }
+
+    @Benchmark
+    public CachedResponse cachedResponse() throws IOException {
+        return CachedResponse.of(mapper, pricelist);
+    }
+
+    @Benchmark
+    public CachedResponse compactGzip() {
+        return cached.compact(CachedResponse.StorageMode.GZIP);
+    }
+}
@@ -2,6 +2,7 @@ package io.github.srdjanv.autobotserver;
 
 import com.electronwill.nightconfig.core.file.FileConfig;
 import com.electronwill.nightconfig.json.JsonFormat;
+import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
 import lombok.Getter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
@@ -11,7 +12,11 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 
 @Slf4j
 @Getter
@@ -48,9 +53,36 @@ public class Config implements AutoCloseable {
         return Duration.ofSeconds(seconds);
     }
 
-    public Duration ipcMessagePollInterval() {
-        int millis = fileConfig.getOrElse("ipc_message_poll_interval", 1000);
-        return Duration.ofMillis(millis);
+    public int ipcEventLoopThreads() {
+        int defaultThreads = Math.clamp(Runtime.getRuntime().availableProcessors() / 2, 1, 4);
+        return fileConfig.getOrElse("ipc_event_loop_threads", defaultThreads);
+    }
+
+    public int ipcReadBufferSize() {
+        return fileConfig.getOrElse("ipc_read_buffer_size", 64 * 1024);
+    }
+
+    public int ipcMaxFrameSize() {
+        return fileConfig.getOrElse("ipc_max_frame_size", 64 * 1024 * 1024);
+    }
+
+    public boolean ipcDirectBuffers() {
+        return fileConfig.getOrElse("ipc_direct_buffers", false);
+    }
+
+    public int ipcMaxWriteBatch() {
+        return fileConfig.getOrElse("ipc_max_write_batch", 1024 * 1024);
+    }
+
+    /**
+     * Switches bots that advertise it to length prefixed smile frames during the handshake.
+     */
+    public boolean ipcBinaryProtocol() {
+        return fileConfig.getOrElse("ipc_binary_protocol", true);
+    }
+
+    public boolean ipcStreamingDispatch() {
+        return fileConfig.getOrElse("ipc_streaming_dispatch", true);
     }
 
     public Duration ipcSocketAutoRestart() {
@@ -77,11 +109,167 @@ public class Config implements AutoCloseable {
         return fileConfig.getOrElse("sni_host_check", true);
     }
 
+    public boolean httpVirtualThreads() {
+        return fileConfig.getOrElse("http_virtual_threads", true);
+    }
+
     public Duration responseCacheTimeout() {
         int seconds = fileConfig.getOrElse("response_cache_timeout", 10);
         return Duration.ofSeconds(seconds);
     }
 
+    /**
+     * Age after which a cached response of the type is reloaded in the background, zero disables refreshing.
+     */
+    public Duration responseCacheRefresh(IpcMessage type) {
+        int seconds = fileConfig.getOrElse(List.of("response_cache", cacheKey(type), "refresh"), () -> (int) responseCacheTimeout().toSeconds());
+        return Duration.ofSeconds(seconds);
+    }
+
+    /**
+     * Age after which a cached response of the type is dropped, even if it could not be refreshed.
+     * Defaults to the response_cache_timeout, so stale responses are only served by caches that set a longer expiry.
+     */
+    public Duration responseCacheExpire(IpcMessage type) {
+        int seconds = fileConfig.getOrElse(List.of("response_cache", cacheKey(type), "expire"),
+                () -> fileConfig.getOrElse("response_cache_expire", () -> (int) responseCacheTimeout().toSeconds()));
+        return Duration.ofSeconds(seconds);
+    }
+
+    private static String cacheKey(IpcMessage type) {
+        return StringUtils.lowerCase(type.name());
+    }
+
+    /**
+     * Number of pricelist and trade changes kept per bot for the delta endpoints.
+     */
+    public int changeLogSize() {
+        return fileConfig.getOrElse("change_log_size", 1024);
+    }
+
+    public int itemsBatchMaxSize() {
+        return fileConfig.getOrElse("items_batch_max_size", 5000);
+    }
+
+    /**
+     * Number of item operations of a batch that are sent to the bot before waiting for replies.
+     */
+    public int itemsBatchMaxInFlight() {
+        return fileConfig.getOrElse("items_batch_max_in_flight", 64);
+    }
+
+    /**
+     * Number of events queued per subscriber before the lag policy applies.
+     */
+    public int eventBufferSize() {
+        return fileConfig.getOrElse("event_buffer_size", 256);
+    }
+
+    /**
+     * What happens to a subscriber whose queue is full, {@code drop_oldest} or {@code disconnect}.
+     */
+    public String eventLagPolicy() {
+        return fileConfig.getOrElse("event_lag_policy", "drop_oldest");
+    }
+
+    /**
+     * Longest time a fleet request waits for the bots, requests can only ask for a shorter deadline.
+     */
+    public Duration fleetRequestTimeout() {
+        int seconds = fileConfig.getOrElse("fleet_request_timeout", 10);
+        return Duration.ofSeconds(seconds);
+    }
+
+    /**
+     * Bytes all response caches can hold together, a quarter of the max heap by default.
+     */
+    public long responseCacheBudget() {
+        long defaultMb = Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024);
+        //parsed as an int or a long depending on its size
+        long mb = fileConfig.<Number>getOrElse("response_cache_budget_mb", defaultMb).longValue();
+        return mb * 1024 * 1024;
+    }
+
+    /**
+     * How often the cache budget is redistributed by the demand of the caches.
+     */
+    public Duration responseCacheRebalanceInterval() {
+        int seconds = fileConfig.getOrElse("response_cache_rebalance_interval", 10);
+        return Duration.ofSeconds(seconds);
+    }
+
+    /**
+     * Bytes the response cache of the type can always hold, no matter the demand of the other caches.
+     */
+    public long responseCacheFloor(IpcMessage type) {
+        int mb = fileConfig.getOrElse(List.of("response_cache", cacheKey(type), "floor_mb"), 4);
+        return mb * 1024L * 1024;
+    }
+
+    public boolean responsePrecompression() {
+        return fileConfig.getOrElse("response_precompression", true);
+    }
+
+    public int responseCompressionMinSize() {
+        return fileConfig.getOrElse("response_compression_min_size", 1024);
+    }
+
+    /**
+     * How cached response bodies are held, {@code heap}, {@code gzip} or off heap in {@code direct} buffers.
+     */
+    public String responseCacheStorage() {
+        return fileConfig.getOrElse("response_cache_storage", "heap");
+    }
+
+    public boolean warmupEnabled() {
+        return fileConfig.getOrElse("warmup_enabled", true);
+    }
+
+    /**
+     * Number of bots whose caches are warmed at the same time.
+     */
+    public int warmupConcurrency() {
+        return fileConfig.getOrElse("warmup_concurrency", 4);
+    }
+
+    /**
+     * Caches loaded in order after a bot registers, named like the response_cache sections.
+     */
+    public List<IpcMessage> warmupTypes() {
+        List<String> names = fileConfig.getOrElse("warmup_types", List.of("keyprice", "pricelist", "inventory"));
+        List<IpcMessage> types = new ArrayList<>();
+        for (String name : names) {
+            Optional<IpcMessage> type = Arrays.stream(IpcMessage.values())
+                    .filter(value -> cacheKey(value).equals(StringUtils.lowerCase(name)))
+                    .findFirst();
+            if (type.isEmpty()) {
+                log.warn("Unknown warmup type {}", name);
+                continue;
+            }
+            types.add(type.get());
+        }
+        return types;
+    }
+
+    /**
+     * Keeps the last responses of every bot on disk, to serve them as stale after a restart until the bot reconnects.
+     */
+    public boolean snapshotEnabled() {
+        return fileConfig.getOrElse("snapshot_enabled", true);
+    }
+
+    public Path snapshotPath() {
+        return path.resolve(fileConfig.getOrElse("snapshot_path", "snapshots"));
+    }
+
+    /**
+     * Age in seconds after which a snapshot is discarded at startup, a day by default.
+     */
+    public Duration snapshotMaxAge() {
+        int seconds = fileConfig.getOrElse("snapshot_max_age", 24 * 60 * 60);
+        return Duration.ofSeconds(seconds);
+    }
+
     public boolean useAuth() {
         return fileConfig.getOrElse("use_auth", true);
     }
@@ -3,8 +3,10 @@ package io.github.srdjanv.autobotserver.ipc;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import io.github.srdjanv.autobotserver.Config;
 import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
+import io.github.srdjanv.autobotserver.metrics.Metrics;
 import lombok.Getter;
 import lombok.Synchronized;
 import lombok.extern.slf4j.Slf4j;
@@ -20,6 +22,7 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 
 @Slf4j
@@ -27,14 +30,27 @@ public class AutobotIpcServer implements AutoCloseable {
     @Getter
     private final Config config;
     private final ObjectMapper mapper;
+    private final ObjectMapper binaryMapper;
+    @Getter
+    private final Metrics metrics = new Metrics();
+    private final LongAdder registrations;
     private final Map<Long, IpcBotHandler> idBotHandlerMap = new ConcurrentHashMap<>();
     private final List<BiConsumer<Long, IpcBotHandler>> ipcRegisterCallbacks = new ArrayList<>();
     private final ScheduledExecutorService socketScheduler = Executors.newSingleThreadScheduledExecutor(
             Thread.ofPlatform().name("Socket listener").factory());
+    private final IpcEventLoopGroup eventLoopGroup;
+    //one timer for the response timeouts of every bot
+    private final ScheduledThreadPoolExecutor timeoutScheduler = new ScheduledThreadPoolExecutor(1,
+            Thread.ofPlatform().name("IPC timeouts").daemon(true).factory());
 
-    public AutobotIpcServer(Config config) {
+    public AutobotIpcServer(Config config) throws IOException {
         this.config = config;
         this.mapper = new ObjectMapper();
+        this.binaryMapper = new ObjectMapper(new SmileFactory());
+        this.eventLoopGroup = new IpcEventLoopGroup(config.ipcEventLoopThreads());
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+        registrations = metrics.counter("ipc_bot_registrations_total", "Bots that completed the handshake, including reconnects");
+        metrics.gauge("ipc_registered_bots", "Bots that are or were connected since the server started", idBotHandlerMap::size);
     }
 
     public void start() {
@@ -63,27 +79,32 @@ public class AutobotIpcServer implements AutoCloseable {
 
                 AFUNIXSocket sock = server.accept();
                 log.info("Client connected: {}", sock);
-                CompletableFuture.runAsync(() -> {
-                    try {
-                        IpcBotHandler ipcBotHandler = new IpcBotHandler(config, mapper, sock);
-                        BotInfo botInfo = ipcBotHandler.awaitParsedResponse(IpcMessage.Info, (objectMapper, node) -> {
-                            JsonNode success = Objects.requireNonNullElse(node.get("success"), BooleanNode.getFalse());
-                            if (!success.isBoolean() || !success.asBoolean()) {
-                                log.error("Not successful {} for {}", node, ipcBotHandler);
-                                return null;
-                            }
-                            JsonNode data = Objects.requireNonNullElse(node.get("data"), BooleanNode.getFalse());
-                            if (!data.isObject()) {
-                                log.error("Invalid data {} for {}", node, ipcBotHandler);
-                                return null;
-                            }
-                            return objectMapper.treeToValue(data, BotInfo.class);
-                        }).join();
-                        registerBotHandler(botInfo, ipcBotHandler);
-                    } catch (Exception e) {
-                        log.error(e.getMessage(), e);
-                        throw new RuntimeException(e);
+                IpcBotHandler ipcBotHandler;
+                try {
+                    ipcBotHandler = new IpcBotHandler(config, mapper, binaryMapper, metrics, sock.getChannel(), eventLoopGroup.next(), timeoutScheduler);
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                    continue;
+                }
+                ipcBotHandler.awaitParsedResponse(IpcMessage.Info, (objectMapper, node) -> {
+                    JsonNode success = Objects.requireNonNullElse(node.get("success"), BooleanNode.getFalse());
+                    if (!success.isBoolean() || !success.asBoolean()) {
+                        log.error("Not successful {} for {}", node, ipcBotHandler);
+                        return null;
+                    }
+                    JsonNode data = Objects.requireNonNullElse(node.get("data"), BooleanNode.getFalse());
+                    if (!data.isObject()) {
+                        log.error("Invalid data {} for {}", node, ipcBotHandler);
+                        return null;
                     }
+                    return objectMapper.treeToValue(data, BotInfo.class);
+                }).thenCompose(botInfo -> negotiateProtocol(botInfo, ipcBotHandler)).whenCompleteAsync((botInfo, throwable) -> {
+                    if (throwable != null) {
+                        log.error("BotInfo request failed for {}", ipcBotHandler, throwable);
+                        closeHandler(ipcBotHandler);
+                        return;
+                    }
+                    registerBotHandler(botInfo, ipcBotHandler);
                 });
             }
         } finally {
@@ -91,6 +112,18 @@ public class AutobotIpcServer implements AutoCloseable {
         }
     }
 
+    /**
+     * Asks bots that support it to switch to the binary protocol, the bot is only registered after the reply,
+     * so no other message can be sent in between.
+     */
+    private CompletableFuture<BotInfo> negotiateProtocol(@Nullable BotInfo info, IpcBotHandler handler) {
+        if (info == null || !config.ipcBinaryProtocol() || !info.supports(IpcProtocol.SMILE)) {
+            return CompletableFuture.completedFuture(info);
+        }
+        return handler.awaitResponse(IpcMessage.SetProtocol, Map.of("protocol", IpcProtocol.SMILE.id()))
+                .thenApply(node -> info);
+    }
+
     @Synchronized
     private void registerBotHandler(@Nullable BotInfo info, IpcBotHandler handler) {
         if (info == null) {
@@ -102,6 +135,10 @@ public class AutobotIpcServer implements AutoCloseable {
         handler.initialize(info);
         long botId = Long.parseUnsignedLong(info.id());
         IpcBotHandler put = idBotHandlerMap.put(botId, handler);
+        registrations.increment();
+        if (put != null) {
+            metrics.counter("ipc_bot_reconnects_total", "Registrations that replaced a previous connection of the bot", "bot", info.id()).increment();
+        }
         closeHandler(put);
         ipcRegisterCallbacks.forEach(cb -> cb.accept(botId, handler));
     }
@@ -169,6 +206,8 @@ public class AutobotIpcServer implements AutoCloseable {
             socketScheduler.awaitTermination(20, TimeUnit.SECONDS);
         } catch (InterruptedException ignored) {
         }
+        eventLoopGroup.close();
+        timeoutScheduler.shutdownNow();
     }
 
     @Override
@@ -1,10 +1,18 @@
 package io.github.srdjanv.autobotserver.ipc;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.util.List;
 
 public record BotInfo(
         String name,
         String id,
-        List<String> admins
+        List<String> admins,
+        //wire formats the bot can switch to, older bots do not send it
+        @Nullable
+        List<String> protocols
 ) {
+    public boolean supports(IpcProtocol protocol) {
+        return protocol == IpcProtocol.TEXT || (protocols != null && protocols.contains(protocol.id()));
+    }
 }
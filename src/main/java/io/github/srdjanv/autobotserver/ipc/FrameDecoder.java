@@ -0,0 +1,176 @@
+package io.github.srdjanv.autobotserver.ipc;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the delimiter framed IPC stream into frames without decoding it to characters.
+ * After {@link #switchToLengthPrefixed()} frames are read by their 4 byte length prefix instead.
+ * Frames are handed out as views of the internal buffer, and are only valid until the handler returns.
+ */
+@Slf4j
+public class FrameDecoder {
+    public static final int LENGTH_PREFIX_SIZE = Integer.BYTES;
+    private final byte delimiter;
+    private final int initialCapacity;
+    private final int maxFrameSize;
+    private final boolean direct;
+    private ByteBuffer buffer;
+    //bytes at the start of the buffer that are known to not contain the delimiter
+    private int scanned;
+    private boolean discarding;
+    private boolean lengthPrefixed;
+
+    public FrameDecoder(char delimiter, int initialCapacity, int maxFrameSize, boolean direct) {
+        if (delimiter > 0x7F) {
+            throw new IllegalArgumentException("Message delimiter must be a single byte ascii character");
+        }
+        if (maxFrameSize < 1) {
+            throw new IllegalArgumentException("Max frame size must be positive");
+        }
+        this.delimiter = (byte) delimiter;
+        this.initialCapacity = Math.min(initialCapacity, maxFrameSize);
+        this.maxFrameSize = maxFrameSize;
+        this.direct = direct;
+        this.buffer = allocate(this.initialCapacity);
+    }
+
+    /**
+     * Reads the frames after the current one by their length prefix, can be called from the frame handler.
+     */
+    public void switchToLengthPrefixed() {
+        lengthPrefixed = true;
+    }
+
+    public boolean lengthPrefixed() {
+        return lengthPrefixed;
+    }
+
+    @FunctionalInterface
+    public interface FrameHandler {
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    /**
+     * Reads everything currently available from a non-blocking channel, passing every completed frame to the handler.
+     *
+     * @return -1 if the end of stream was reached, otherwise the number of bytes read
+     */
+    public int readFrom(ReadableByteChannel channel, FrameHandler handler) throws IOException {
+        int total = 0;
+        int read;
+        while (true) {
+            ensureWritable();
+            read = channel.read(buffer);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+            decode(handler);
+        }
+        return read == -1 ? -1 : total;
+    }
+
+    private void decode(FrameHandler handler) throws IOException {
+        int end = buffer.position();
+        int frameStart = 0;
+        if (!lengthPrefixed) {
+            frameStart = decodeDelimited(handler, end);
+        }
+        //also picks up the rest of the buffer if the handler just switched the framing
+        if (lengthPrefixed) {
+            frameStart = decodeLengthPrefixed(handler, frameStart, end);
+        }
+
+        if (discarding) {
+            buffer.clear();
+            scanned = 0;
+            return;
+        }
+        int pending = end - frameStart;
+        //length prefixed frames are bounded by their prefix, which decodeLengthPrefixed already checked
+        if (!lengthPrefixed && pending > maxFrameSize) {
+            log.error("Frame exceeds the max frame size of {} bytes, discarding it", maxFrameSize);
+            discarding = true;
+            buffer.clear();
+            scanned = 0;
+            return;
+        }
+        if (frameStart > 0) {
+            if (pending == 0 && buffer.capacity() > initialCapacity) {
+                //release the memory of a large frame once it has been handled
+                buffer = allocate(initialCapacity);
+            } else {
+                buffer.limit(end).position(frameStart);
+                buffer.compact();
+            }
+        }
+        scanned = lengthPrefixed ? 0 : pending;
+    }
+
+    /**
+     * @return start of the first incomplete frame
+     */
+    private int decodeDelimited(FrameHandler handler, int end) throws IOException {
+        int frameStart = 0;
+        for (int i = scanned; i < end; i++) {
+            if (buffer.get(i) != delimiter) {
+                continue;
+            }
+            if (discarding) {
+                discarding = false;
+            } else {
+                handler.onFrame(buffer.slice(frameStart, i - frameStart));
+            }
+            frameStart = i + 1;
+            if (lengthPrefixed) {
+                break;
+            }
+        }
+        return frameStart;
+    }
+
+    /**
+     * @return start of the first incomplete frame
+     * @throws IOException if a length is invalid, the stream can not be resynchronized after that
+     */
+    private int decodeLengthPrefixed(FrameHandler handler, int frameStart, int end) throws IOException {
+        while (end - frameStart >= LENGTH_PREFIX_SIZE) {
+            int length = buffer.getInt(frameStart);
+            if (length < 0 || length > maxFrameSize) {
+                throw new IOException("Invalid frame length " + length + ", the max frame size is " + maxFrameSize);
+            }
+            int frameEnd = frameStart + LENGTH_PREFIX_SIZE + length;
+            if (frameEnd > end) {
+                break;
+            }
+            handler.onFrame(buffer.slice(frameStart + LENGTH_PREFIX_SIZE, length));
+            frameStart = frameEnd;
+        }
+        return frameStart;
+    }
+
+    private void ensureWritable() {
+        if (buffer.hasRemaining()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        //room for the largest frame and its length prefix, a full delimited buffer is over the max frame size and gets discarded
+        long maxCapacity = (long) maxFrameSize + LENGTH_PREFIX_SIZE;
+        if (capacity >= maxCapacity) {
+            return;
+        }
+        int newCapacity = (int) Math.min((long) capacity * 2, maxCapacity);
+        ByteBuffer grown = allocate(newCapacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
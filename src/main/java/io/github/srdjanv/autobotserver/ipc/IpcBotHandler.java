@@ -5,18 +5,25 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.srdjanv.autobotserver.Config;
 import io.github.srdjanv.autobotserver.ipc.messages.*;
+import io.github.srdjanv.autobotserver.metrics.Histogram;
+import io.github.srdjanv.autobotserver.metrics.Metrics;
 import lombok.Getter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketChannel;
 
 import java.io.IOException;
-import java.time.Duration;
+import java.nio.channels.SelectionKey;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
 
 @Slf4j
 public class IpcBotHandler implements AutoCloseable {
@@ -27,53 +34,59 @@ public class IpcBotHandler implements AutoCloseable {
     private volatile BotInfo botInfo;
 
     private final ObjectMapper mapper;
+    private final ObjectMapper binaryMapper;
+    private final Metrics metrics;
     private final Config config;
-    private final AFUNIXSocket socket;
-    private boolean closed = false;
+    private final AFUNIXSocketChannel channel;
+    private volatile boolean closed = false;
     private final Map<IpcMessage, Collection<MessageListener>> reciverMap = new ConcurrentHashMap<>();
-    private final Deque<Message> sendDeque = new ConcurrentLinkedDeque<>();
+    private final Map<IpcMessage, Collection<StreamMessageListener>> streamReciverMap = new ConcurrentHashMap<>();
+    private final Deque<SocketMessageSender.QueuedMessage> sendDeque = new ConcurrentLinkedDeque<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    //ordered by id, so replies without an id complete the oldest request of their type
+    private final NavigableMap<Long, PendingRequest> pendingRequests = new ConcurrentSkipListMap<>();
+    //read only requests that are queued or waiting for a reply, identical requests join these
+    private final Map<InFlightKey, CompletableFuture<JsonNode>> inFlightRequests = new ConcurrentHashMap<>();
+    private final LongAdder coalescedRequests = new LongAdder();
+    //indexed by IpcMessage ordinal, set once the bot is known
+    @Nullable
+    private volatile Histogram[] requestLatency;
+    @Nullable
+    private volatile LongAdder[] requestTimeouts;
+    private final DoubleSupplier sendQueueDepth = () -> sendDeque.size();
 
-    private final ScheduledExecutorService receiverExecutor;
-    private final ScheduledFuture<?> receiverScheduledFuture;
+    private final IpcEventLoop eventLoop;
+    private final ScheduledExecutorService timeoutScheduler;
+    private final CompletableFuture<SelectionKey> selectionKey;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
     private final SocketMessageReceiver receiver;
-
-    private final ScheduledExecutorService senderExecutor;
-    private final ScheduledFuture<?> senderScheduledFuture;
     private final SocketMessageSender sender;
+    @Getter
+    @Accessors(fluent = true)
+    private volatile IpcProtocol protocol = IpcProtocol.TEXT;
 
-    public IpcBotHandler(Config config, ObjectMapper objectMapper, AFUNIXSocket socket) throws IOException {
-        this.socket = socket;
+    /**
+     * @param binaryMapper smile mapper used once the bot switched to the binary protocol
+     */
+    public IpcBotHandler(Config config, ObjectMapper objectMapper, ObjectMapper binaryMapper, Metrics metrics, AFUNIXSocketChannel channel,
+                         IpcEventLoop eventLoop, ScheduledExecutorService timeoutScheduler) throws IOException {
+        this.channel = channel;
         this.config = config;
+        this.eventLoop = eventLoop;
+        this.timeoutScheduler = timeoutScheduler;
         mapper = objectMapper;
-        if (socket.checkConnectionClosed()) {
+        this.binaryMapper = binaryMapper;
+        this.metrics = metrics;
+        if (channel.socket().checkConnectionClosed()) {
             log.warn("Peer closed socket right after connecting");
             throw new IOException("Peer closed socket right after connecting");
         }
 
-        Duration interval = config.ipcMessagePollInterval();
-        long intervalMillis = interval.toMillis();
-        log.info("Starting IpcBotHandler with poll interval of {}", interval);
-        receiverExecutor = Executors.newSingleThreadScheduledExecutor();
-        receiver = new SocketMessageReceiver(this, config, objectMapper, socket, reciverMap);
-        receiverScheduledFuture = receiverExecutor.scheduleAtFixedRate(() -> {
-            try {
-                receiver.readMessage();
-            } catch (Throwable e) {
-                log.error("Error reading message", e);
-                throw new RuntimeException(e);
-            }
-        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
-
-        senderExecutor = Executors.newSingleThreadScheduledExecutor();
-        sender = new SocketMessageSender(this, config, objectMapper, socket, sendDeque);
-        senderScheduledFuture = senderExecutor.scheduleAtFixedRate(() -> {
-            try {
-                sender.sendMessage();
-            } catch (Throwable e) {
-                log.error("Error sending message", e);
-                throw new RuntimeException(e);
-            }
-        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Starting IpcBotHandler on {}", eventLoop);
+        receiver = new SocketMessageReceiver(this, config, objectMapper, channel, reciverMap, streamReciverMap);
+        sender = new SocketMessageSender(this, config, objectMapper, channel, sendDeque);
+        channel.configureBlocking(false);
+        selectionKey = eventLoop.register(channel, SelectionKey.OP_READ, this);
     }
 
     public <T> CompletableFuture<T> awaitParsedResponse(IpcMessage message, ResponseParser<T> parser) {
@@ -85,12 +98,11 @@ public class IpcBotHandler implements AutoCloseable {
     }
 
     public <T> CompletableFuture<T> awaitParsedResponse(Message message, ResponseParser<T> parser) {
-        return CompletableFuture.supplyAsync(() -> {
-            JsonNode node = awaitResponse(message).join();
+        return awaitResponse(message).thenApply(node -> {
             try {
                 return parser.parse(mapper, node);
             } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
+                throw new CompletionException(e);
             }
         });
     }
@@ -103,67 +115,188 @@ public class IpcBotHandler implements AutoCloseable {
         return awaitResponse(new Message(message, data));
     }
 
+    /**
+     * The returned future is completed by the event loop that reads the reply, or by the shared timeout scheduler.
+     * Dependent stages that block should use the async variants.
+     * Read only requests are coalesced, while an identical request is queued or in flight the caller shares its reply.
+     */
     public CompletableFuture<JsonNode> awaitResponse(Message message) {
-        return CompletableFuture.supplyAsync(() -> {
-            JsonNode[] data = new JsonNode[1];
-            send(message, (node, botHandler) -> {
-                data[0] = node;
-            }).join();
-            //join will wait for successful compilation or throw an exception
-            return Objects.requireNonNull(data[0]);
+        Optional<IpcMessage> ipcMessage = IpcMessage.fromSend(message.type());
+        if (ipcMessage.isEmpty() || ipcMessage.get().receive() == null) {
+            return CompletableFuture.failedFuture(new Exception("Invalid message type"));
+        }
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Handler closed"));
+        }
+        if (!ipcMessage.get().readOnly()) {
+            return request(ipcMessage.get(), message);
+        }
+
+        InFlightKey key = new InFlightKey(ipcMessage.get(), mapper.valueToTree(message.data()));
+        CompletableFuture<JsonNode> response = new CompletableFuture<>();
+        CompletableFuture<JsonNode> inFlight = inFlightRequests.putIfAbsent(key, response);
+        if (inFlight != null) {
+            coalescedRequests.increment();
+            return inFlight.copy();
+        }
+        response.whenComplete((node, throwable) -> inFlightRequests.remove(key, response));
+        request(ipcMessage.get(), message).whenComplete((node, throwable) -> {
+            if (throwable != null) {
+                response.completeExceptionally(throwable);
+            } else {
+                response.complete(node);
+            }
         });
+        //callers get copies, so one of them cancelling does not fail the others
+        return response.copy();
+    }
+
+    private CompletableFuture<JsonNode> request(IpcMessage type, Message message) {
+        long start = System.nanoTime();
+        long id = requestIds.incrementAndGet();
+        CompletableFuture<JsonNode> response = new CompletableFuture<>();
+        pendingRequests.put(id, new PendingRequest(id, type, response));
+        ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> {
+            response.completeExceptionally(new TimeoutException("Response timed out"));
+        }, config.ipcMessageTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        response.whenComplete((node, throwable) -> {
+            pendingRequests.remove(id);
+            timeout.cancel(false);
+            recordRequest(type, start, throwable);
+        });
+        //close sets the flag before it fails the pending requests, so a request it missed sees the flag here
+        if (closed) {
+            response.completeExceptionally(new IllegalStateException("Handler closed"));
+            return response;
+        }
+        send(message.withId(id));
+        return response;
+    }
+
+    private void recordRequest(IpcMessage type, long start, @Nullable Throwable throwable) {
+        Histogram[] latency = requestLatency;
+        LongAdder[] timeouts = requestTimeouts;
+        if (latency == null || timeouts == null) {
+            return;
+        }
+        if (throwable == null) {
+            latency[type.ordinal()].observeNanos(System.nanoTime() - start);
+        } else if (throwable instanceof TimeoutException) {
+            timeouts[type.ordinal()].increment();
+        }
     }
 
     public CompletableFuture<Void> send(Message message, OnMessage onMessage) {
-        Optional<IpcMessage> ipcMessage = IpcMessage.fromSend(message.type());
-        if (ipcMessage.isEmpty() || ipcMessage.get().receive() == null) {
-            return CompletableFuture.failedFuture(new Exception("Invalid message type"));
+        return awaitResponse(message).thenAccept(node -> onMessage.onMessage(node, this));
+    }
+
+    record PendingRequest(long id, IpcMessage type, CompletableFuture<JsonNode> response) {
+    }
+
+    private record InFlightKey(IpcMessage type, @Nullable JsonNode data) {
+    }
+
+    boolean hasPendingRequest(List<IpcMessage> types) {
+        for (PendingRequest request : pendingRequests.values()) {
+            if (types.contains(request.type())) {
+                return true;
+            }
         }
-        return CompletableFuture.runAsync(() -> {
-            boolean[] finished = new boolean[1];
-            OnMessage wrapped = (node, botHandler) -> {
-                synchronized (finished) {
-                    try {
-                        onMessage.onMessage(node, botHandler);
-                    } finally {
-                        finished[0] = true;
-                        finished.notifyAll();
-                    }
-                }
-            };
-            try (var ignore = registerListener(ipcMessage.get(), wrapped)) {
-                send(message);
-                synchronized (finished) {
-                    long timeoutMillis = config.ipcMessageTimeout().toMillis();
-                    long remaining = timeoutMillis;
-                    long deadline = System.currentTimeMillis() + timeoutMillis;
-
-                    while (!finished[0] && remaining > 0 && !closed) {
-                        try {
-                            finished.wait(remaining);
-                            remaining = deadline - System.currentTimeMillis();
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Interrupted while waiting for response", e);
-                        }
-                    }
-                    if (closed) {
-                        throw new RuntimeException("Handler closed");
-                    }
-                    if (!finished[0]) {
-                        throw new RuntimeException(new TimeoutException("Response timed out"));
-                    }
+        return false;
+    }
+
+    /**
+     * Completes the request the reply belongs to, if the bot did not echo an id the oldest request with a matching type is used.
+     *
+     * @return false if no request was waiting for the reply
+     */
+    boolean completeRequest(@Nullable Long id, List<IpcMessage> types, JsonNode data) {
+        PendingRequest request = null;
+        if (id != null) {
+            request = pendingRequests.remove(id);
+        } else {
+            for (PendingRequest pending : pendingRequests.values()) {
+                if (types.contains(pending.type()) && pendingRequests.remove(pending.id(), pending)) {
+                    request = pending;
+                    break;
                 }
             }
-        });
+        }
+        if (request == null) {
+            return false;
+        }
+        return request.response().complete(data);
     }
 
     public void send(IpcMessage message) {
-        sendDeque.add(new Message(message));
+        send(new Message(message));
     }
 
     public void send(Message message) {
-        sendDeque.add(message);
+        sendDeque.add(new SocketMessageSender.QueuedMessage(message));
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        SelectionKey key = selectionKey.getNow(null);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            boolean written = sender.sendMessages();
+            key.interestOps(written ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (Throwable e) {
+            log.error("Error sending message", e);
+            closeQuietly();
+        }
+    }
+
+    void handleSelected(SelectionKey key) {
+        if (key.isReadable()) {
+            try {
+                if (!receiver.readMessages()) {
+                    closeQuietly();
+                    return;
+                }
+            } catch (Throwable e) {
+                log.error("Error reading message", e);
+                closeQuietly();
+                return;
+            }
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    /**
+     * Called by the receiver on the event loop once the bot acknowledged the protocol, before its next frame is read.
+     * Nothing may be sent between the protocol request and its reply, the bot reads everything after the request in the new format.
+     */
+    void switchProtocol(IpcProtocol protocol) {
+        ObjectMapper frameMapper = protocol == IpcProtocol.SMILE ? binaryMapper : mapper;
+        receiver.switchProtocol(protocol, frameMapper);
+        sender.switchProtocol(protocol, frameMapper);
+        this.protocol = protocol;
+        log.info("Switched {} to the {} protocol", this, protocol);
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    public SocketMessageSender.Stats senderStats() {
+        return sender.stats();
+    }
+
+    /**
+     * @return number of requests that joined an identical in flight request instead of being sent
+     */
+    public long coalescedRequests() {
+        return coalescedRequests.sum();
     }
 
     public MessageCloseable registerListener(IpcMessage type, OnMessage listener) {
@@ -176,21 +309,48 @@ public class IpcBotHandler implements AutoCloseable {
         return () -> listeners.remove(messageListener);
     }
 
+    public MessageCloseable registerStreamListener(IpcMessage type, OnStreamMessage listener) {
+        return registerStreamListener(new StreamMessageListener(type, listener));
+    }
+
+    public MessageCloseable registerStreamListener(StreamMessageListener messageListener) {
+        Collection<StreamMessageListener> listeners = streamReciverMap.computeIfAbsent(messageListener.type(), t -> new ConcurrentLinkedDeque<>());
+        listeners.add(messageListener);
+        return () -> listeners.remove(messageListener);
+    }
+
     public void initialize(@NotNull BotInfo botInfo) {
         if (this.botInfo == null) {
             this.botInfo = botInfo;
             receiver.initialize(botInfo);
             sender.initialize(botInfo);
+            initializeMetrics(botInfo.id());
             return;
         }
         log.warn("Bot already initialized, botInfo: {}", this.botInfo);
     }
 
+    private void initializeMetrics(String botId) {
+        IpcMessage[] types = IpcMessage.values();
+        Histogram[] latency = new Histogram[types.length];
+        LongAdder[] timeouts = new LongAdder[types.length];
+        for (IpcMessage type : types) {
+            String name = StringUtils.lowerCase(type.name());
+            latency[type.ordinal()] = metrics.histogram("ipc_request_duration_seconds", "Time from queueing a request until the bot replied",
+                    Histogram.LATENCY_BUCKETS, "bot", botId, "type", name);
+            timeouts[type.ordinal()] = metrics.counter("ipc_request_timeouts_total", "Requests the bot did not reply to in time",
+                    "bot", botId, "type", name);
+        }
+        requestTimeouts = timeouts;
+        requestLatency = latency;
+        metrics.gauge("ipc_send_queue_depth", "Messages waiting to be written to the bot", sendQueueDepth, "bot", botId);
+    }
+
     public boolean isOpen() {
-        boolean socketOk = !socket.isClosed() && socket.isBound() && socket.isConnected();
-        boolean executorsOk = !receiverExecutor.isShutdown() && !senderExecutor.isShutdown();
-        boolean ipcComOk = !receiverScheduledFuture.isDone() && !senderScheduledFuture.isDone();
-        if (socketOk && executorsOk && ipcComOk) {
+        boolean socketOk = !closed && channel.isOpen() && channel.isConnected();
+        SelectionKey key = selectionKey.getNow(null);
+        boolean ipcComOk = !selectionKey.isCompletedExceptionally() && (key == null || key.isValid());
+        if (socketOk && ipcComOk) {
             return true;
         }
         BotInfo botInfo = this.botInfo;
@@ -204,42 +364,50 @@ public class IpcBotHandler implements AutoCloseable {
         if (!socketOk) {
             log.error("BotId {}, socket error", botId);
         }
-        if (!executorsOk) {
-            log.error("BotId {}, executors error", botId);
-        }
         if (!ipcComOk) {
             log.error("BotId {}, ipc communication error", botId);
         }
         return false;
     }
 
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (Exception e) {
+            log.error("Error closing {}", this, e);
+        }
+    }
+
     @Override
     public void close() throws Exception {
+        if (closed) {
+            return;
+        }
         log.info("Closing {}", this);
+        closed = true;
+        BotInfo info = botInfo;
+        if (info != null) {
+            metrics.removeGauge("ipc_send_queue_depth", sendQueueDepth, "bot", info.id());
+        }
         List<AbstractSocketChannel> socketChannels = List.of(receiver, sender);
         for (AbstractSocketChannel channel : socketChannels) {
             log.info("Closing channel {}", channel);
             channel.close();
         }
-        List<ScheduledExecutorService> services = List.of(receiverExecutor, senderExecutor);
-        for (ScheduledExecutorService scheduledExecutorService : services) {
-            log.info("Closing scheduled executor service: {}", scheduledExecutorService);
-            scheduledExecutorService.shutdown();
+        SelectionKey key = selectionKey.getNow(null);
+        if (key != null) {
+            key.cancel();
         }
-        for (ScheduledExecutorService service : services) {
-            if (!service.awaitTermination(10, TimeUnit.SECONDS)) {
-                log.info("Timed out executing service {}", service);
-                service.shutdownNow();
-            }
+        for (PendingRequest request : pendingRequests.values()) {
+            request.response().completeExceptionally(new IllegalStateException("Handler closed"));
         }
         log.info("Closing socket");
         try {
-            socket.close();
+            channel.close();
         } catch (IOException e) {
             log.error("Error closing socket", e);
         }
         log.info("Finished closing {}", this);
-        closed = true;
     }
 
     @Override
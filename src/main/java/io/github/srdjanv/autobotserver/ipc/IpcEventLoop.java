@@ -0,0 +1,110 @@
+package io.github.srdjanv.autobotserver.ipc;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.newsclub.net.unix.AFUNIXSelectorProvider;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that multiplexes the sockets of many {@link IpcBotHandler}s.
+ * Everything touching a registered channel runs on this thread, other threads hand work over with {@link #execute(Runnable)}.
+ */
+@Slf4j
+public class IpcEventLoop implements AutoCloseable {
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public IpcEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = AFUNIXSelectorProvider.provider().openSelector();
+        this.thread = Thread.ofPlatform().name(name).daemon(true).unstarted(this::run);
+        this.thread.start();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    CompletableFuture<SelectionKey> register(SelectableChannel channel, int ops, IpcBotHandler handler) {
+        CompletableFuture<SelectionKey> future = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                future.complete(channel.register(selector, ops, handler));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private void run() {
+        log.info("{} started", name);
+        while (!closed) {
+            try {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    ((IpcBotHandler) key.attachment()).handleSelected(key);
+                }
+            } catch (Throwable e) {
+                log.error("{} error", name, e);
+            }
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Error closing selector of {}", name, e);
+        }
+        log.info("{} stopped", name);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error("{} task error", name, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        selector.wakeup();
+        if (!inEventLoop()) {
+            thread.join(10_000);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("name", name)
+                .toString();
+    }
+}
@@ -0,0 +1,42 @@
+package io.github.srdjanv.autobotserver.ipc;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+public class IpcEventLoopGroup implements AutoCloseable {
+    private final List<IpcEventLoop> loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public IpcEventLoopGroup(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Event loop threads must be at least 1");
+        }
+        List<IpcEventLoop> loops = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            loops.add(new IpcEventLoop("IPC event loop #" + i));
+        }
+        this.loops = List.copyOf(loops);
+        log.info("Started {} IPC event loops", threads);
+    }
+
+    public IpcEventLoop next() {
+        return loops.get(Math.floorMod(next.getAndIncrement(), loops.size()));
+    }
+
+    @Override
+    public void close() {
+        for (IpcEventLoop loop : loops) {
+            try {
+                loop.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.srdjanv.autobotserver.ipc;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Wire formats of the IPC socket, every connection starts with text and can switch to smile during the handshake.
+ */
+public enum IpcProtocol {
+    //utf-8 json frames split on the message delimiter
+    TEXT("json"),
+    //smile frames prefixed with their length as a 4 byte big endian int
+    SMILE("smile");
+
+    private final String id;
+
+    IpcProtocol(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the name bots advertise and request the protocol with
+     */
+    public String id() {
+        return id;
+    }
+
+    public boolean lengthPrefixed() {
+        return this != TEXT;
+    }
+
+    @Nullable
+    public static IpcProtocol from(String id) {
+        for (IpcProtocol value : values()) {
+            if (StringUtils.equalsIgnoreCase(value.id, id)) {
+                return value;
+            }
+        }
+        return null;
+    }
+}
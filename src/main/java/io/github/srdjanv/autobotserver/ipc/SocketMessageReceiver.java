@@ -1,91 +1,327 @@
 package io.github.srdjanv.autobotserver.ipc;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import io.github.srdjanv.autobotserver.Config;
 import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
 import io.github.srdjanv.autobotserver.ipc.messages.MessageListener;
+import io.github.srdjanv.autobotserver.ipc.messages.StreamMessageListener;
+import io.github.srdjanv.autobotserver.metrics.Histogram;
+import io.github.srdjanv.autobotserver.metrics.Metrics;
 import lombok.extern.slf4j.Slf4j;
-import org.newsclub.net.unix.AFUNIXSocket;
+import org.jetbrains.annotations.Nullable;
+import org.newsclub.net.unix.AFUNIXSocketChannel;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 @Slf4j
 public class SocketMessageReceiver extends AbstractSocketChannel {
     public final Map<IpcMessage, Collection<MessageListener>> handlers;
-    public final BufferedReader in;
+    public final Map<IpcMessage, Collection<StreamMessageListener>> streamHandlers;
+    private final AFUNIXSocketChannel channel;
+    private final FrameDecoder decoder;
+    //creates the parsers of the current wire format, trees are still handled by the json mapper
+    private ObjectMapper frameMapper;
+    //set once the bot is known, frames of the handshake are not recorded
+    @Nullable
+    private volatile Histogram frameBytes;
+    @Nullable
+    private volatile Histogram frameDispatch;
 
-    public SocketMessageReceiver(IpcBotHandler ipcBotHandler, Config config, ObjectMapper mapper, AFUNIXSocket socket, Map<IpcMessage, Collection<MessageListener>> handlers) throws IOException {
+    public SocketMessageReceiver(IpcBotHandler ipcBotHandler, Config config, ObjectMapper mapper, AFUNIXSocketChannel channel,
+                                 Map<IpcMessage, Collection<MessageListener>> handlers, Map<IpcMessage, Collection<StreamMessageListener>> streamHandlers) {
         super(ipcBotHandler, config, mapper);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.channel = channel;
         this.handlers = handlers;
+        this.streamHandlers = streamHandlers;
+        this.decoder = new FrameDecoder(config.messageDelimiter(), config.ipcReadBufferSize(), config.ipcMaxFrameSize(), config.ipcDirectBuffers());
+        this.frameMapper = mapper;
     }
 
-    public void readMessage() throws IOException {
-        final char delimiter = config.messageDelimiter();
-        List<Character> response = new ArrayList<>();
-        int streamChar;
-        while ((streamChar = in.read()) != delimiter && isSocketActive()) {
-            if (streamChar == -1) {
-                if (!isSocketActive()) {
-                    log.warn("BotId: {}, Unexpected end of stream", botId);
-                }
+    @Override
+    void initialize(BotInfo botInfo) {
+        super.initialize(botInfo);
+        Metrics metrics = ipcBotHandler.metrics();
+        frameDispatch = metrics.histogram("ipc_frame_dispatch_seconds", "Time spent parsing a received frame and running its listeners",
+                Histogram.LATENCY_BUCKETS, "bot", botInfo.id());
+        frameBytes = metrics.histogram("ipc_frame_bytes", "Size of the frames received from the bot",
+                Histogram.SIZE_BUCKETS, "bot", botInfo.id());
+    }
+
+    /**
+     * Must be called on the event loop while a frame is dispatched, every frame after it is read in the new format.
+     */
+    void switchProtocol(IpcProtocol protocol, ObjectMapper frameMapper) {
+        this.frameMapper = frameMapper;
+        if (protocol.lengthPrefixed()) {
+            decoder.switchToLengthPrefixed();
+        }
+    }
+
+    /**
+     * Reads everything currently available on the non-blocking channel and dispatches every completed frame.
+     *
+     * @return false if the peer closed the stream
+     */
+    public boolean readMessages() throws IOException {
+        return readMessages(channel);
+    }
+
+    /**
+     * Package private so the receive path can be benchmarked with reads that do not come from a socket.
+     */
+    boolean readMessages(ReadableByteChannel source) throws IOException {
+        int read = decoder.readFrom(source, frame -> {
+            if (!isSocketActive()) {
+                log.warn("BotId: {}, discarding response of {} bytes, closed stream", botId, frame.remaining());
                 return;
             }
-            response.add((char) streamChar);
-        }
-        if (!isSocketActive()) {
-            if (!response.isEmpty()) {
-                log.warn("BotId: {}, discarding response {}, closed stream", botId, response);
+            Histogram bytes = frameBytes;
+            Histogram dispatchTime = frameDispatch;
+            long start = System.nanoTime();
+            if (bytes != null) {
+                bytes.observe(frame.remaining());
+            }
+            try {
+                dispatch(frame);
+            } catch (Exception e) {
+                log.error("BotId: {}, Error handling message", botId, e);
             }
+            if (dispatchTime != null) {
+                dispatchTime.observeNanos(System.nanoTime() - start);
+            }
+        });
+        if (read == -1) {
+            if (isSocketActive()) {
+                log.warn("BotId: {}, Unexpected end of stream", botId);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private JsonParser createParser(ByteBuffer frame) throws IOException {
+        if (frame.hasArray()) {
+            return frameMapper.createParser(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+        return frameMapper.createParser(new ByteBufferBackedInputStream(frame));
+    }
+
+    private void dispatch(ByteBuffer frame) throws IOException {
+        if (!frame.hasRemaining()) {
             return;
         }
-        String responseString = response.stream().map(String::valueOf).collect(Collectors.joining());
-        JsonNode jsonNode = mapper.readTree(responseString);
-        if (!jsonNode.isObject()) {
+        try (JsonParser parser = createParser(frame)) {
+            if (config.ipcStreamingDispatch()) {
+                dispatchStreaming(parser);
+            } else {
+                dispatchTree(parser);
+            }
+        }
+    }
+
+    private void dispatchTree(JsonParser parser) throws IOException {
+        JsonNode jsonNode = mapper.readTree(parser);
+        if (jsonNode == null || !jsonNode.isObject()) {
             log.error("BotId: {}, Unexpected json node", botId);
             return;
         }
         ObjectNode dataNode = (ObjectNode) jsonNode;
         List<IpcMessage> ipcMessageList = IpcMessage.fromReceive(dataNode.get("type").asText());
         if (ipcMessageList.isEmpty()) {
-            log.warn("BotId: {}, Received a message from client with unknown response type: {}", botId, responseString);
+            log.warn("BotId: {}, Received a message from client with unknown response type: {}", botId, dataNode.get("type"));
+            return;
+        }
+        JsonNode data = dataNode.get("data");
+        if (data == null) {
+            log.warn("BotId: {}, Received a message from client without data: {}", botId, dataNode);
+            data = NullNode.getInstance();
+        }
+        JsonNode idNode = dataNode.get("id");
+        Long id = idNode != null && idNode.isIntegralNumber() ? idNode.asLong() : null;
+        try (JsonParser dataParser = data.traverse(mapper)) {
+            dataParser.nextToken();
+            dispatchData(ipcMessageList, id, dataParser, data);
+        }
+    }
+
+    /**
+     * Reads the message envelope token by token, so the {@code data} value only gets materialized if a listener needs it.
+     */
+    private void dispatchStreaming(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            log.error("BotId: {}, Unexpected json node", botId);
             return;
         }
+        List<IpcMessage> ipcMessageList = null;
+        Long id = null;
+        TokenBuffer bufferedData = null;
+        String fieldName;
+        while ((fieldName = parser.nextFieldName()) != null) {
+            JsonToken token = parser.nextToken();
+            switch (fieldName) {
+                case "type" -> {
+                    String type = parser.getValueAsString();
+                    ipcMessageList = IpcMessage.fromReceive(type);
+                    if (ipcMessageList.isEmpty()) {
+                        log.warn("BotId: {}, Received a message from client with unknown response type: {}", botId, type);
+                        return;
+                    }
+                }
+                case "id" -> id = token == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue() : null;
+                case "data" -> {
+                    if (ipcMessageList != null && !ipcBotHandler.hasPendingRequest(ipcMessageList)) {
+                        //no request is waiting on an id, so the data can go straight to the listeners
+                        dispatchData(ipcMessageList, null, parser, null);
+                        return;
+                    }
+                    //keep the tokens around until we know the type and id
+                    bufferedData = new TokenBuffer(parser);
+                    bufferedData.copyCurrentStructure(parser);
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        if (ipcMessageList == null) {
+            log.warn("BotId: {}, Received a message from client without type", botId);
+            return;
+        }
+        if (bufferedData == null) {
+            log.warn("BotId: {}, Received a message from client without data: {}", botId, ipcMessageList);
+            bufferedData = new TokenBuffer(mapper, false);
+            bufferedData.writeNull();
+        }
+        try (JsonParser bufferedParser = bufferedData.asParser(mapper)) {
+            bufferedParser.nextToken();
+            dispatchData(ipcMessageList, id, bufferedParser, null);
+        }
+    }
+
+    /**
+     * @param id   the id the bot echoed back, null for bots that do not support request ids
+     * @param data parser positioned on the first token of the data value
+     * @param tree the already materialized data, if any
+     */
+    private void dispatchData(List<IpcMessage> ipcMessageList, @Nullable Long id, JsonParser data, @Nullable JsonNode tree) throws IOException {
+        if (ipcMessageList.contains(IpcMessage.SetProtocol)) {
+            //switch before the next frame is decoded, the bot writes it in the new format
+            tree = tree != null ? tree : mapper.readTree(data);
+            acceptProtocol(tree);
+        }
+        boolean pending = ipcBotHandler.hasPendingRequest(ipcMessageList);
+        List<MessageListener> messageListeners = new ArrayList<>();
+        List<StreamMessageListener> streamListeners = new ArrayList<>();
         for (IpcMessage responseType : ipcMessageList) {
-            Collection<MessageListener> messageListeners = handlers.get(responseType);
-            if (messageListeners == null) {
+            Collection<MessageListener> listeners = handlers.getOrDefault(responseType, List.of());
+            Collection<StreamMessageListener> streaming = streamHandlers.getOrDefault(responseType, List.of());
+            if (listeners.isEmpty() && streaming.isEmpty() && !ipcBotHandler.hasPendingRequest(List.of(responseType))) {
                 log.info("BotId: {}, No listeners registered for response: {}", botId, responseType);
                 continue;
             }
-            JsonNode data = dataNode.get("data");
-            if (data == null) {
-                log.warn("BotId: {}, Received a message from client without data: {}", botId, responseString);
-                data = NullNode.getInstance();
+            messageListeners.addAll(listeners);
+            streamListeners.addAll(streaming);
+        }
+        if (!pending && messageListeners.isEmpty() && streamListeners.isEmpty()) {
+            return;
+        }
+
+        if (tree == null && !pending && messageListeners.isEmpty() && streamListeners.size() == 1) {
+            logReceived(ipcMessageList, null);
+            JsonStreamContext context = valueContext(data);
+            streamListeners.getFirst().listener().onMessage(data, ipcBotHandler);
+            skipRemaining(data, context);
+            return;
+        }
+        if (tree == null && !pending && messageListeners.isEmpty()) {
+            logReceived(ipcMessageList, null);
+            TokenBuffer buffer = new TokenBuffer(data);
+            buffer.copyCurrentStructure(data);
+            for (StreamMessageListener listener : streamListeners) {
+                try (JsonParser parser = buffer.asParser(mapper)) {
+                    parser.nextToken();
+                    listener.listener().onMessage(parser, ipcBotHandler);
+                }
+            }
+            return;
+        }
+
+        JsonNode node = tree != null ? tree : mapper.readTree(data);
+        logReceived(ipcMessageList, node);
+        boolean completed = pending && ipcBotHandler.completeRequest(id, ipcMessageList, node);
+        if (pending && !completed) {
+            log.warn("BotId: {}, No pending request for response {} with id {}", botId, ipcMessageList, id);
+        }
+        for (MessageListener listener : messageListeners) {
+            if (listener.listener() != null) {
+                listener.listener().onMessage(node, ipcBotHandler);
+            }
+        }
+        //stream listeners only handle pushes, a reply is already handled by whoever requested it
+        if (completed) {
+            return;
+        }
+        for (StreamMessageListener listener : streamListeners) {
+            try (JsonParser parser = node.traverse(mapper)) {
+                parser.nextToken();
+                listener.listener().onMessage(parser, ipcBotHandler);
             }
+        }
+    }
+
+    private void acceptProtocol(JsonNode reply) {
+        IpcProtocol protocol = IpcProtocol.from(reply.path("data").path("protocol").asText());
+        if (!reply.path("success").asBoolean() || protocol == null) {
+            log.warn("BotId: {}, Bot did not switch the protocol: {}", botId, reply);
+            return;
+        }
+        ipcBotHandler.switchProtocol(protocol);
+    }
+
+    private void logReceived(List<IpcMessage> ipcMessageList, @Nullable JsonNode data) {
+        for (IpcMessage responseType : ipcMessageList) {
             switch (responseType) {
                 case Trades, Inventory, UserInventory, Pricelist -> {
                     log.info("BotId: {}, Received message from {}", botId, responseType);
                 }
                 default -> {
-                    log.info("BotId: {}, Received message from {}, data: {}", botId, responseType, data);
-                }
-            }
-            for (MessageListener listener : messageListeners) {
-                if (listener.listener() != null) {
-                    listener.listener().onMessage(data, ipcBotHandler);
+                    if (data == null) {
+                        log.info("BotId: {}, Received message from {}", botId, responseType);
+                    } else {
+                        log.info("BotId: {}, Received message from {}, data: {}", botId, responseType, data);
+                    }
                 }
             }
         }
     }
 
+    //the context the value lives in, once the parser returns to it the whole value was read
+    private static JsonStreamContext valueContext(JsonParser parser) {
+        JsonStreamContext context = parser.getParsingContext();
+        if (parser.isExpectedStartObjectToken() || parser.isExpectedStartArrayToken()) {
+            return context.getParent();
+        }
+        return context;
+    }
+
+    private static void skipRemaining(JsonParser parser, JsonStreamContext context) throws IOException {
+        while (parser.getParsingContext() != context) {
+            parser.skipChildren();
+            if (parser.getParsingContext() == context || parser.nextToken() == null) {
+                return;
+            }
+        }
+    }
 }
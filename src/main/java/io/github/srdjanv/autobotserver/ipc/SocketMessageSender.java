@@ -4,33 +4,187 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.srdjanv.autobotserver.Config;
 import io.github.srdjanv.autobotserver.ipc.messages.Message;
 import lombok.extern.slf4j.Slf4j;
-import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketChannel;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 public class SocketMessageSender extends AbstractSocketChannel {
-    public final Deque<Message> messages;
-    public final PrintWriter out;
+    public final Deque<QueuedMessage> messages;
+    private final AFUNIXSocketChannel channel;
+    private final ByteBufferOutputStream out = new ByteBufferOutputStream(8 * 1024);
+    private IpcProtocol protocol = IpcProtocol.TEXT;
+    private ObjectMapper frameMapper;
+    //read mode view of the encoded batch that still has to be written
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    private long batchEnqueuedAt;
+    private int batchSize;
 
-    public SocketMessageSender(IpcBotHandler ipcBotHandler, Config config, ObjectMapper mapper, AFUNIXSocket socket, Deque<Message> messages) throws IOException {
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final AtomicLong totalFlushLatency = new AtomicLong();
+    private final AtomicLong maxFlushLatency = new AtomicLong();
+
+    public SocketMessageSender(IpcBotHandler ipcBotHandler, Config config, ObjectMapper mapper, AFUNIXSocketChannel channel, Deque<QueuedMessage> messages) {
         super(ipcBotHandler, config, mapper);
         this.messages = messages;
-        this.out = new PrintWriter(socket.getOutputStream(), false);
+        this.channel = channel;
+        this.frameMapper = mapper;
+    }
+
+    /**
+     * Must be called on the event loop, messages encoded after it use the new format.
+     */
+    void switchProtocol(IpcProtocol protocol, ObjectMapper frameMapper) {
+        this.protocol = protocol;
+        this.frameMapper = frameMapper;
+    }
+
+    public record QueuedMessage(Message message, long enqueuedAt) {
+        public QueuedMessage(Message message) {
+            this(message, System.nanoTime());
+        }
     }
 
-    public void sendMessage() throws IOException {
+    /**
+     * @param flushLatencyMicros time from enqueueing the oldest message of a batch until the batch was written
+     */
+    public record Stats(
+            long batches,
+            long messages,
+            long bytes,
+            long maxBatchSize,
+            long averageFlushLatencyMicros,
+            long maxFlushLatencyMicros
+    ) {
+    }
+
+    public Stats stats() {
+        long batches = this.batches.get();
+        return new Stats(batches, sentMessages.get(), sentBytes.get(), maxBatchSize.get(),
+                batches == 0 ? 0 : totalFlushLatency.get() / batches, maxFlushLatency.get());
+    }
+
+    /**
+     * Drains the queue into batches, every batch is encoded into one buffer and written with as few writes as the socket allows.
+     *
+     * @return true if everything was written, false if the non-blocking channel stopped accepting bytes
+     */
+    public boolean sendMessages() throws IOException {
+        while (isSocketActive()) {
+            if (!pending.hasRemaining() && !encodeBatch()) {
+                return true;
+            }
+            channel.write(pending);
+            if (pending.hasRemaining()) {
+                return false;
+            }
+            recordBatch();
+        }
+        return true;
+    }
+
+    private boolean encodeBatch() throws IOException {
         final char delimiter = config.messageDelimiter();
-        Message poll = messages.poll();
-        if (poll == null) {
-            return;
-        }
-        String message = mapper.writeValueAsString(poll);
-        log.info("BotId: {}, Sending message: {}", botId, message);
-        message = message + delimiter;
-        out.write(message);
-        out.flush();
+        final int maxBatchBytes = config.ipcMaxWriteBatch();
+        out.reset();
+        batchSize = 0;
+        QueuedMessage queued;
+        while (out.size() < maxBatchBytes && (queued = messages.poll()) != null) {
+            log.info("BotId: {}, Sending message: {}", botId, queued.message());
+            if (batchSize == 0) {
+                batchEnqueuedAt = queued.enqueuedAt();
+            }
+            encode(out, queued.message(), protocol, frameMapper, delimiter);
+            batchSize++;
+        }
+        if (batchSize == 0) {
+            return false;
+        }
+        pending = out.buffer();
+        return true;
+    }
+
+    static void encode(ByteBufferOutputStream out, Message message, IpcProtocol protocol, ObjectMapper frameMapper, char delimiter) throws IOException {
+        if (protocol.lengthPrefixed()) {
+            int lengthAt = out.size();
+            out.skip(FrameDecoder.LENGTH_PREFIX_SIZE);
+            frameMapper.writeValue(out, message);
+            out.putInt(lengthAt, out.size() - lengthAt - FrameDecoder.LENGTH_PREFIX_SIZE);
+        } else {
+            frameMapper.writeValue(out, message);
+            out.write(delimiter);
+        }
+    }
+
+    private void recordBatch() {
+        long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - batchEnqueuedAt);
+        batches.incrementAndGet();
+        sentMessages.addAndGet(batchSize);
+        sentBytes.addAndGet(pending.limit());
+        maxBatchSize.accumulateAndGet(batchSize, Math::max);
+        totalFlushLatency.addAndGet(latency);
+        maxFlushLatency.accumulateAndGet(latency, Math::max);
+        if (batchSize > 1) {
+            log.debug("BotId: {}, Sent {} messages in one batch of {} bytes", botId, batchSize, pending.limit());
+        }
+    }
+
+    static final class ByteBufferOutputStream extends OutputStream {
+        private ByteBuffer buffer;
+
+        ByteBufferOutputStream(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        void reset() {
+            buffer.clear();
+        }
+
+        int size() {
+            return buffer.position();
+        }
+
+        ByteBuffer buffer() {
+            return buffer.duplicate().flip();
+        }
+
+        void skip(int length) {
+            ensureCapacity(length);
+            buffer.position(buffer.position() + length);
+        }
+
+        void putInt(int index, int value) {
+            buffer.putInt(index, value);
+        }
+
+        private void ensureCapacity(int additional) {
+            if (buffer.remaining() >= additional) {
+                return;
+            }
+            int capacity = Math.max(buffer.capacity() * 2, buffer.position() + additional);
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            grown.put(buffer.flip());
+            buffer = grown;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            buffer.put(b, off, len);
+        }
     }
 }
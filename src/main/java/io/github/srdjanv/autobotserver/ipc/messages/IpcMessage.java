@@ -13,26 +13,30 @@ import java.util.Optional;
 @Getter
 @Accessors(fluent = true)
 public enum IpcMessage {
-    Info("getInfo", "info"),
-    KeyPrice("getKeyPrices", "keyPrices"),
-    Pricelist("getPricelist", "pricelist"),
-    Trades("getTrades", "polldata"),
-    Item_Remove("removeItem", "itemRemoved"),
-    Item_Update("updateItem", "itemUpdated"),
-    Item_Add("addItem", "itemAdded"),
-    Inventory("getInventory", "inventory"),
-    UserInventory("getUserInventory", "userInventory"),
-    Halt("haltBot", "haltStatus"),
-    HaltStatus("getHaltStatus", "haltStatus");
+    Info("getInfo", "info", true),
+    KeyPrice("getKeyPrices", "keyPrices", true),
+    Pricelist("getPricelist", "pricelist", true),
+    Trades("getTrades", "polldata", true),
+    Item_Remove("removeItem", "itemRemoved", false),
+    Item_Update("updateItem", "itemUpdated", false),
+    Item_Add("addItem", "itemAdded", false),
+    Inventory("getInventory", "inventory", true),
+    UserInventory("getUserInventory", "userInventory", true),
+    Halt("haltBot", "haltStatus", false),
+    HaltStatus("getHaltStatus", "haltStatus", true),
+    SetProtocol("setProtocol", "protocol", false);
 
     @NotNull
     private final String send;
     @Nullable
     private final String receive;
+    //read only requests with the same data can share one reply
+    private final boolean readOnly;
 
-    IpcMessage(@NotNull String send, @Nullable String receive) {
+    IpcMessage(@NotNull String send, @Nullable String receive, boolean readOnly) {
         this.send = send;
         this.receive = receive;
+        this.readOnly = readOnly;
     }
 
     public static Optional<IpcMessage> fromSend(String type) {
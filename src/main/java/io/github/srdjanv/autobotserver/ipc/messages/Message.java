@@ -1,12 +1,18 @@
 package io.github.srdjanv.autobotserver.ipc.messages;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Objects;
 
 public record Message(
         String type,
-        Object data
+        Object data,
+        //echoed back by the bot to correlate the reply, older bots ignore it
+        @Nullable
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        Long id
 ) {
     public Message(IpcMessage type) {
         this(type, null);
@@ -17,8 +23,16 @@ public record Message(
     }
 
     public Message(String type, Object data) {
+        this(type, data, null);
+    }
+
+    public Message(String type, Object data, @Nullable Long id) {
         this.type = Objects.requireNonNull(type);
         this.data = data == null ? JsonNodeFactory.instance.objectNode() : data;
+        this.id = id;
     }
 
+    public Message withId(long id) {
+        return new Message(type, data, id);
+    }
 }
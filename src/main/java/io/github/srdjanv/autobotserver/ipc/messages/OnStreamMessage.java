@@ -0,0 +1,17 @@
+package io.github.srdjanv.autobotserver.ipc.messages;
+
+import com.fasterxml.jackson.core.JsonParser;
+import io.github.srdjanv.autobotserver.ipc.IpcBotHandler;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Consumes the {@code data} of a message as a token stream, the parser is positioned on the first token of the value.
+ * Anything left unread is skipped once the listener returns.
+ * Only called for messages the bot pushed, replies to a pending request complete that request instead.
+ */
+@FunctionalInterface
+public interface OnStreamMessage {
+    void onMessage(@NotNull JsonParser data, IpcBotHandler ipcBotHandler) throws IOException;
+}
@@ -0,0 +1,14 @@
+package io.github.srdjanv.autobotserver.ipc.messages;
+
+import java.util.Objects;
+
+public record StreamMessageListener(
+        IpcMessage type,
+        OnStreamMessage listener
+) {
+    public StreamMessageListener(IpcMessage type, OnStreamMessage listener) {
+        this.type = Objects.requireNonNull(type, "type");
+        this.listener = Objects.requireNonNull(listener, "listener");
+        Objects.requireNonNull(type.receive(), "Ipc message has no receive type");
+    }
+}
@@ -1,104 +1,191 @@
 package io.github.srdjanv.autobotserver.javalin;
 
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.github.srdjanv.autobotserver.Config;
 import io.github.srdjanv.autobotserver.ipc.AutobotIpcServer;
 import io.github.srdjanv.autobotserver.ipc.BotInfo;
 import io.github.srdjanv.autobotserver.ipc.IpcBotHandler;
 import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
+import io.github.srdjanv.autobotserver.ipc.messages.Message;
+import io.github.srdjanv.autobotserver.metrics.Metrics;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.sse.SseClient;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 @Slf4j
-public class BotController {
+public class BotController implements AutoCloseable {
     private final ObjectMapper mapper;
     private final AutobotIpcServer server;
-    private final AsyncLoadingCache<Long, JsonNode> keyPricesCache;
-    private final AsyncLoadingCache<Long, JsonNode> priceListCache;
-    private final AsyncLoadingCache<Long, JsonNode> tradeListCache;
-    private final AsyncLoadingCache<Long, JsonNode> inventoryCache;
-    private final AsyncLoadingCache<UserInvReqKey, JsonNode> userInventoryCache;
+    //runs response serialization and writing, so neither happens on an IPC event loop
+    private final Executor responseExecutor;
+    //builds the precompressed variants of cached responses
+    private final Executor compressionExecutor = ForkJoinPool.commonPool();
+    //fleet responses block until every bot replied or the deadline passed, so each gets a virtual thread of its own
+    private final ExecutorService fleetExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AsyncLoadingCache<Long, CachedResponse> keyPricesCache;
+    private final AsyncLoadingCache<Long, CachedResponse> priceListCache;
+    private final AsyncLoadingCache<Long, CachedResponse> tradeListCache;
+    private final AsyncLoadingCache<Long, CachedResponse> inventoryCache;
+    private final AsyncLoadingCache<UserInvReqKey, CachedResponse> userInventoryCache;
+    private final Map<Long, PricelistIndex> priceListIndexes = new ConcurrentHashMap<>();
+    private final Map<Long, TradeIndex> tradeIndexes = new ConcurrentHashMap<>();
+    private final Map<Long, InventoryIndex> inventoryIndexes = new ConcurrentHashMap<>();
+    //last queued task per bot, every rebuild and patch of an index runs after the ones queued before it
+    private final Map<Long, CompletableFuture<?>> priceListQueue = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<?>> tradeQueue = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<?>> inventoryQueue = new ConcurrentHashMap<>();
+    //kept across reconnects so versions only ever grow
+    private final Map<Long, ChangeLog> priceListChanges = new ConcurrentHashMap<>();
+    private final Map<Long, ChangeLog> tradeChanges = new ConcurrentHashMap<>();
+    private final EventHub eventHub;
+    private final CacheBudget cacheBudget;
+    private final SnapshotStore snapshotStore;
+    private final CacheWarmer cacheWarmer;
+    private final CachedResponse.StorageMode storageMode;
 
     public BotController(AutobotIpcServer server) {
         this.server = server;
-        Duration timeout = server.getConfig().responseCacheTimeout();
-
-        keyPricesCache = Caffeine.newBuilder()
-                .expireAfterWrite(timeout)
-                .buildAsync((key, executor) -> {
-                    Optional<IpcBotHandler> botHandler = server.getBotHandler(key);
-                    if (botHandler.isEmpty()) {
-                        return CompletableFuture.failedFuture(new Exception("Bot handler not found"));
-                    }
-                    return botHandler.get().awaitResponse(IpcMessage.KeyPrice);
-                });
-        priceListCache = Caffeine.newBuilder()
-                .expireAfterWrite(timeout)
-                .buildAsync((key, executor) -> {
-                    Optional<IpcBotHandler> botHandler = server.getBotHandler(key);
-                    if (botHandler.isEmpty()) {
-                        return CompletableFuture.failedFuture(new Exception("Bot handler not found"));
-                    }
-                    return botHandler.get().awaitResponse(IpcMessage.Pricelist);
-                });
-        tradeListCache = Caffeine.newBuilder()
-                .expireAfterWrite(timeout)
-                .buildAsync((key, executor) -> {
-                    Optional<IpcBotHandler> botHandler = server.getBotHandler(key);
-                    if (botHandler.isEmpty()) {
-                        return CompletableFuture.failedFuture(new Exception("Bot handler not found"));
-                    }
-                    return botHandler.get().awaitResponse(IpcMessage.Trades);
-                });
-
-        inventoryCache = Caffeine.newBuilder()
-                .expireAfterWrite(timeout)
-                .buildAsync((key, executor) -> {
-                    Optional<IpcBotHandler> botHandler = server.getBotHandler(key);
-                    if (botHandler.isEmpty()) {
-                        return CompletableFuture.failedFuture(new Exception("Bot handler not found"));
-                    }
-                    return botHandler.get().awaitResponse(IpcMessage.Inventory);
-                });
+        mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        responseExecutor = server.getConfig().httpVirtualThreads() ? Executors.newVirtualThreadPerTaskExecutor() : ForkJoinPool.commonPool();
+        //parsed once, so a mistyped storage fails at startup instead of on every cached request
+        try {
+            storageMode = CachedResponse.StorageMode.valueOf(StringUtils.upperCase(server.getConfig().responseCacheStorage()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid response_cache_storage " + server.getConfig().responseCacheStorage()
+                    + ", expected one of " + StringUtils.lowerCase(Arrays.toString(CachedResponse.StorageMode.values())), e);
+        }
+        eventHub = new EventHub(server.getConfig().eventBufferSize(), EventHub.LagPolicy.valueOf(StringUtils.upperCase(server.getConfig().eventLagPolicy())));
+        cacheBudget = new CacheBudget(server.getConfig().responseCacheBudget(), server.getConfig().responseCacheRebalanceInterval());
+        snapshotStore = new SnapshotStore(server.getConfig().snapshotPath(), mapper);
+        if (server.getConfig().snapshotEnabled()) {
+            try {
+                snapshotStore.load(server.getConfig().snapshotMaxAge());
+            } catch (IOException e) {
+                log.error("Failed to load snapshots", e);
+            }
+        }
 
-        userInventoryCache = Caffeine.newBuilder()
-                .expireAfterWrite(timeout)
-                .buildAsync((key, executor) -> {
-                    Optional<IpcBotHandler> botHandler = server.getBotHandler(key.bot());
-                    if (botHandler.isEmpty()) {
-                        return CompletableFuture.failedFuture(new Exception("Bot handler not found"));
-                    }
-                    return botHandler.get().awaitResponse(IpcMessage.UserInventory, Long.toUnsignedString(key.user()));
-                });
+        keyPricesCache = cacheBuilder(IpcMessage.KeyPrice)
+                .buildAsync((key, executor) -> load(key, IpcMessage.KeyPrice, new Message(IpcMessage.KeyPrice)));
+        priceListCache = cacheBuilder(IpcMessage.Pricelist)
+                .buildAsync((key, executor) -> load(key, IpcMessage.Pricelist, new Message(IpcMessage.Pricelist)));
+        tradeListCache = cacheBuilder(IpcMessage.Trades)
+                .buildAsync((key, executor) -> load(key, IpcMessage.Trades, new Message(IpcMessage.Trades)));
+        inventoryCache = cacheBuilder(IpcMessage.Inventory)
+                .buildAsync((key, executor) -> load(key, IpcMessage.Inventory, new Message(IpcMessage.Inventory)));
+        userInventoryCache = cacheBuilder(IpcMessage.UserInventory)
+                .buildAsync((key, executor) -> load(key.bot(), IpcMessage.UserInventory, new Message(IpcMessage.UserInventory, Long.toUnsignedString(key.user()))));
+        registerBudget(IpcMessage.KeyPrice, keyPricesCache);
+        registerBudget(IpcMessage.Pricelist, priceListCache);
+        registerBudget(IpcMessage.Trades, tradeListCache);
+        registerBudget(IpcMessage.Inventory, inventoryCache);
+        registerBudget(IpcMessage.UserInventory, userInventoryCache);
+        cacheBudget.reserve("Indexes", this::indexWeight);
+        server.getMetrics().register(cacheBudget::collect);
+        server.getMetrics().gauge("event_subscribers", "Connected server sent event subscribers", eventHub::subscribers);
+        cacheWarmer = new CacheWarmer(Map.of(
+                IpcMessage.KeyPrice, keyPricesCache,
+                IpcMessage.Pricelist, priceListCache,
+                IpcMessage.Trades, tradeListCache,
+                IpcMessage.Inventory, inventoryCache
+        ), server.getConfig().warmupConcurrency());
 
         server.registerCallback((botId, handler) -> {
-            handler.registerListener(IpcMessage.Pricelist, (node, ipcBotHandler) -> {
-                priceListCache.put(botId, CompletableFuture.completedFuture(node));
+            //the indexes are keyed by the steam id, so they are kept across reconnects of the bot,
+            //the first response after one is diffed against them instead of resetting the change logs
+            //pushes are copied straight from the socket buffer into the cached bytes
+            if (server.getConfig().snapshotEnabled() && handler.botInfo() != null) {
+                snapshotStore.saveBot(handler.botInfo());
+            }
+            //only the copy runs on the event loop, the rest is queued behind the earlier updates of the bot
+            handler.registerStreamListener(IpcMessage.Pricelist, (parser, ipcBotHandler) -> {
+                CachedResponse copy = CachedResponse.copyOf(mapper, parser);
+                Instant received = Instant.now();
+                serially(priceListQueue, botId, () -> {
+                    CachedResponse response = precompress(copy);
+                    priceListCache.put(botId, CompletableFuture.completedFuture(response));
+                    snapshot(botId, IpcMessage.Pricelist, response, received);
+                    return rebuildPriceList(botId, response);
+                }).exceptionally(throwable -> {
+                    log.error("Failed to index pricelist of {}", Long.toUnsignedString(botId), throwable);
+                    return null;
+                });
             });
-            handler.registerListener(IpcMessage.Trades, (node, ipcBotHandler) -> {
-                tradeListCache.put(botId, CompletableFuture.completedFuture(node));
+            //item replies patch the index instead of waiting for the next full pricelist,
+            //they are queued like the pushes, so a reply that follows a push is applied to the new index
+            handler.registerListener(IpcMessage.Item_Add, (node, ipcBotHandler) -> serially(priceListQueue, botId, () -> patchPriceList(botId, node, false)));
+            handler.registerListener(IpcMessage.Item_Update, (node, ipcBotHandler) -> serially(priceListQueue, botId, () -> patchPriceList(botId, node, false)));
+            handler.registerListener(IpcMessage.Item_Remove, (node, ipcBotHandler) -> serially(priceListQueue, botId, () -> patchPriceList(botId, node, true)));
+            handler.registerStreamListener(IpcMessage.Trades, (parser, ipcBotHandler) -> {
+                CachedResponse copy = CachedResponse.copyOf(mapper, parser);
+                Instant received = Instant.now();
+                //indexed eagerly so subscribers see trade changes without anyone polling
+                serially(tradeQueue, botId, () -> {
+                    CachedResponse response = precompress(copy);
+                    tradeListCache.put(botId, CompletableFuture.completedFuture(response));
+                    snapshot(botId, IpcMessage.Trades, response, received);
+                    return rebuildTrades(botId, response);
+                }).exceptionally(throwable -> {
+                    log.error("Failed to index trades of {}", Long.toUnsignedString(botId), throwable);
+                    return null;
+                });
             });
-            handler.registerListener(IpcMessage.Inventory, (node, ipcBotHandler) -> {
-                inventoryCache.put(botId, CompletableFuture.completedFuture(node));
+            handler.registerStreamListener(IpcMessage.Inventory, (parser, ipcBotHandler) -> {
+                CachedResponse copy = CachedResponse.copyOf(mapper, parser);
+                Instant received = Instant.now();
+                serially(inventoryQueue, botId, () -> {
+                    CachedResponse response = precompress(copy);
+                    inventoryCache.put(botId, CompletableFuture.completedFuture(response));
+                    snapshot(botId, IpcMessage.Inventory, response, received);
+                    eventHub.publish(botId, "inventory", "{\"bot\":\"" + Long.toUnsignedString(botId) + "\",\"etag\":" + response.etag() + "}");
+                    return updateInventory(botId, response);
+                }).exceptionally(throwable -> {
+                    log.error("Failed to index inventory of {}", Long.toUnsignedString(botId), throwable);
+                    return null;
+                });
             });
+            if (server.getConfig().warmupEnabled()) {
+                cacheWarmer.warm(botId, server.getConfig().warmupTypes());
+            }
         });
-
-        mapper = new ObjectMapper();
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
     }
 
     public void getBots(Context ctx) {
@@ -114,7 +201,7 @@ public class BotController {
             response.put("success", true);
             response.set("data", mapper.valueToTree(botInfos));
             return response;
-        });
+        }, responseExecutor);
         handleResponse(ctx, data);
     }
 
@@ -144,29 +231,238 @@ public class BotController {
 
     public void getKeyPrices(Context ctx) {
         getBotId(ctx, botId -> {
-            CompletableFuture<JsonNode> future = keyPricesCache.get(botId);
-            handleResponse(ctx, future);
+            CompletableFuture<CachedResponse> future = keyPricesCache.get(botId);
+            handleCachedResponse(ctx, botId, IpcMessage.KeyPrice, future);
         });
     }
 
     public void getPriceList(Context ctx) {
         getBotId(ctx, botId -> {
-            CompletableFuture<JsonNode> future = priceListCache.get(botId);
-            handleResponse(ctx, future);
+            String sku = ctx.queryParam("sku");
+            //the cache is still read so its refresh keeps the index in sync with the bot
+            CompletableFuture<CachedResponse> cached = priceListCache.get(botId);
+            if (sku == null) {
+                handleCachedResponse(ctx, botId, IpcMessage.Pricelist, priceList(botId, cached));
+                return;
+            }
+            ctx.future(() -> cached.thenCompose(response -> indexPriceList(botId, response).thenAcceptAsync(index -> {
+                if (index.isEmpty()) {
+                    ctx.status(400);
+                    ctx.contentType(ContentType.APPLICATION_JSON);
+                    ctx.result(response.stream());
+                    return;
+                }
+                Optional<byte[]> entry = index.get().entry(sku);
+                if (entry.isEmpty()) {
+                    error(ctx, 404, "Item not in pricelist");
+                    return;
+                }
+                ByteArrayBuilder out = new ByteArrayBuilder(entry.get().length + 32);
+                out.write("{\"success\":true,\"data\":".getBytes(StandardCharsets.US_ASCII));
+                out.write(entry.get());
+                out.append('}');
+                ctx.contentType(ContentType.APPLICATION_JSON);
+                ctx.result(out.toByteArray());
+            }, responseExecutor)).exceptionally(throwable -> {
+                error(ctx, 500, ExceptionUtils.getRootCauseMessage(throwable));
+                return null;
+            }));
         });
     }
 
+    /**
+     * @return the pricelist served from the index of the bot, so it includes the item patches applied since the last full reply
+     */
+    private CompletableFuture<CachedResponse> priceList(long botId, CompletableFuture<CachedResponse> cached) {
+        return cached.thenComposeAsync(response -> indexPriceList(botId, response)
+                .thenApply(index -> index.map(PricelistIndex::response).orElse(response)), responseExecutor);
+    }
+
+    public void getPriceListChanges(Context ctx) {
+        getBotId(ctx, botId -> {
+            handleChanges(ctx, priceListCache.get(botId), response -> indexPriceList(botId, response)
+                    .thenApply(index -> index.map(built -> changeLog(priceListChanges, botId, "pricelist"))));
+        });
+    }
+
+    public void getTradeChanges(Context ctx) {
+        getBotId(ctx, botId -> {
+            handleChanges(ctx, tradeListCache.get(botId), response -> indexTrades(botId, response)
+                    .thenApply(index -> index.map(built -> changeLog(tradeChanges, botId, "trades"))));
+        });
+    }
+
+    /**
+     * Reading the cache first picks up a refreshed response, and with it the changes it contains.
+     */
+    private void handleChanges(Context ctx, CompletableFuture<CachedResponse> cached, Function<CachedResponse, CompletableFuture<Optional<ChangeLog>>> changeLog) {
+        long since;
+        try {
+            since = Long.parseLong(Objects.requireNonNullElse(ctx.queryParam("since"), "0"));
+        } catch (NumberFormatException e) {
+            error(ctx, 400, "since is not a number");
+            return;
+        }
+        ctx.future(() -> cached.thenCompose(response -> changeLog.apply(response).thenAcceptAsync(changes -> {
+            ctx.contentType(ContentType.APPLICATION_JSON);
+            if (changes.isEmpty()) {
+                ctx.status(400);
+                ctx.result(response.stream());
+                return;
+            }
+            ctx.result(changes.get().toResponse(since));
+        }, responseExecutor)).exceptionally(throwable -> {
+            error(ctx, 500, ExceptionUtils.getRootCauseMessage(throwable));
+            return null;
+        }));
+    }
+
+    /**
+     * Streams pricelist, trade and inventory events as server sent events, for one bot if it is specified, otherwise for all bots.
+     */
+    public void subscribeEvents(SseClient client) {
+        Context ctx = client.ctx();
+        String id = ctx.queryParam("bot_id");
+        String name = ctx.queryParam("bot_name");
+        if (id == null && name == null) {
+            eventHub.subscribe(client, null);
+            return;
+        }
+        Optional<Long> botId;
+        try {
+            botId = id != null ? Optional.of(Long.parseUnsignedLong(id)) : botIdByName(name);
+        } catch (NumberFormatException e) {
+            botId = Optional.empty();
+        }
+        if (botId.isEmpty()) {
+            client.sendEvent("error", "{\"success\":false,\"data\":\"Unable to find bot\"}");
+            client.close();
+            return;
+        }
+        eventHub.subscribe(client, botId.get());
+    }
+
     public void getTrades(Context ctx) {
         getBotId(ctx, botId -> {
-            CompletableFuture<JsonNode> future = tradeListCache.get(botId);
-            handleResponse(ctx, future);
+            CompletableFuture<CachedResponse> future = tradeListCache.get(botId);
+            boolean query = Stream.of("from", "to", "state", "partner", "limit", "cursor")
+                    .anyMatch(param -> ctx.queryParam(param) != null);
+            if (!query) {
+                handleCachedResponse(ctx, botId, IpcMessage.Trades, future);
+                return;
+            }
+            queryTrades(ctx, botId, future);
         });
     }
 
+    /**
+     * Serves one page of trades from the index, newest first.
+     */
+    private void queryTrades(Context ctx, long botId, CompletableFuture<CachedResponse> cached) {
+        Long from, to;
+        Integer state;
+        int limit;
+        try {
+            from = ctx.queryParam("from") != null ? Long.parseLong(ctx.queryParam("from")) : null;
+            to = ctx.queryParam("to") != null ? Long.parseLong(ctx.queryParam("to")) : null;
+            state = parseOfferState(ctx.queryParam("state"));
+            limit = ctx.queryParam("limit") != null ? Integer.parseInt(ctx.queryParam("limit")) : 100;
+        } catch (IllegalArgumentException e) {
+            error(ctx, 400, ExceptionUtils.getRootCauseMessage(e));
+            return;
+        }
+        if (limit < 1 || limit > 1000) {
+            error(ctx, 400, "limit must be between 1 and 1000");
+            return;
+        }
+        String partner = StringUtils.trimToNull(ctx.queryParam("partner"));
+        String cursor = StringUtils.trimToNull(ctx.queryParam("cursor"));
+
+        ctx.future(() -> cached.thenCompose(response -> indexTrades(botId, response).thenAcceptAsync(index -> {
+            if (index.isEmpty()) {
+                ctx.status(400);
+                ctx.contentType(ContentType.APPLICATION_JSON);
+                ctx.result(response.stream());
+                return;
+            }
+            TradeIndex.Page page;
+            try {
+                page = index.get().query(from, to, state, partner, limit, cursor);
+            } catch (IllegalArgumentException e) {
+                error(ctx, 400, ExceptionUtils.getRootCauseMessage(e));
+                return;
+            }
+            ByteArrayBuilder out = new ByteArrayBuilder(page.trades().size() * 256 + 64);
+            out.write("{\"success\":true,\"data\":{\"trades\":[".getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; i < page.trades().size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.write(page.trades().get(i).json());
+            }
+            String nextCursor = page.nextCursor() != null ? '"' + page.nextCursor() + '"' : "null";
+            out.write(("],\"next_cursor\":" + nextCursor + "}}").getBytes(StandardCharsets.US_ASCII));
+            ctx.contentType(ContentType.APPLICATION_JSON);
+            ctx.result(out.toByteArray());
+        }, responseExecutor)).exceptionally(throwable -> {
+            error(ctx, 500, ExceptionUtils.getRootCauseMessage(throwable));
+            return null;
+        }));
+    }
+
+    @Nullable
+    private static Integer parseOfferState(@Nullable String state) {
+        if (StringUtils.isBlank(state)) {
+            return null;
+        }
+        if (StringUtils.isNumeric(state)) {
+            return Integer.parseInt(state);
+        }
+        TradeIndex.OfferState offerState = TradeIndex.OfferState.from(state);
+        if (offerState == null) {
+            throw new IllegalArgumentException("Invalid state");
+        }
+        return offerState.state();
+    }
+
     public void getInventory(Context ctx) {
         getBotId(ctx, botId -> {
-            CompletableFuture<JsonNode> future = inventoryCache.get(botId);
-            handleResponse(ctx, future);
+            CompletableFuture<CachedResponse> future = inventoryCache.get(botId);
+            String sku = ctx.queryParam("sku");
+            if (sku == null) {
+                handleCachedResponse(ctx, botId, IpcMessage.Inventory, future);
+                return;
+            }
+            ctx.future(() -> future.thenCompose(response -> indexInventory(botId, response).thenAcceptAsync(index -> {
+                if (index.isEmpty()) {
+                    ctx.status(400);
+                    ctx.contentType(ContentType.APPLICATION_JSON);
+                    ctx.result(response.stream());
+                    return;
+                }
+                long[] assets = index.get().assets(sku);
+                ObjectNode data = mapper.createObjectNode();
+                data.put("sku", sku);
+                data.put("count", assets.length);
+                ArrayNode ids = data.putArray("assets");
+                for (long asset : assets) {
+                    ids.add(Long.toString(asset));
+                }
+                ObjectNode node = mapper.createObjectNode();
+                node.put("success", true);
+                node.set("data", data);
+                ctx.json(node.toString());
+            }, responseExecutor)).exceptionally(throwable -> {
+                error(ctx, 500, ExceptionUtils.getRootCauseMessage(throwable));
+                return null;
+            }));
+        });
+    }
+
+    public void getInventorySummary(Context ctx) {
+        getBotId(ctx, botId -> {
+            handleCachedResponse(ctx, inventoryCache.get(botId).thenComposeAsync(response -> indexInventory(botId, response)
+                    .thenApply(index -> index.map(InventoryIndex::summary).orElse(response)), responseExecutor));
         });
     }
 
@@ -191,8 +487,8 @@ public class BotController {
                 handleResponse(ctx, CompletableFuture.failedFuture(new IllegalArgumentException("User matches bot id")));
                 return;
             }
-            CompletableFuture<JsonNode> future = userInventoryCache.get(new UserInvReqKey(botId, userId));
-            handleResponse(ctx, future);
+            CompletableFuture<CachedResponse> future = userInventoryCache.get(new UserInvReqKey(botId, userId));
+            handleCachedResponse(ctx, future);
         });
     }
 
@@ -227,6 +523,216 @@ public class BotController {
         });
     }
 
+    /**
+     * Applies a json array of {@code {"op": "add|update|remove", "sku": ..., listing fields}} operations.
+     * Every operation is validated first, the valid ones are then pipelined to the bot and answered in order.
+     */
+    public void batchItems(Context ctx) {
+        getBotHandler(ctx, handler -> {
+            JsonNode operations;
+            try {
+                operations = mapper.readTree(ctx.bodyInputStream());
+            } catch (IOException e) {
+                error(ctx, 400, "Invalid json: " + ExceptionUtils.getRootCauseMessage(e));
+                return;
+            }
+            if (operations == null || !operations.isArray()) {
+                error(ctx, 400, "Expected an array of item operations");
+                return;
+            }
+            int maxItems = server.getConfig().itemsBatchMaxSize();
+            if (operations.size() > maxItems) {
+                error(ctx, 400, "Batch exceeds the max size of " + maxItems);
+                return;
+            }
+            handleResponse(ctx, CompletableFuture.supplyAsync(() -> applyBatch(handler, operations), responseExecutor)
+                    .thenCompose(Function.identity()));
+        });
+    }
+
+    private record ItemOperation(ObjectNode result, IpcMessage type, Object data) {
+    }
+
+    /**
+     * No thread waits on the bot, every reply sends the next queued operation.
+     */
+    private CompletableFuture<JsonNode> applyBatch(IpcBotHandler handler, JsonNode operations) {
+        List<ObjectNode> results = new ArrayList<>(operations.size());
+        List<ItemOperation> valid = new ArrayList<>(operations.size());
+        for (JsonNode operation : operations) {
+            ObjectNode result = mapper.createObjectNode();
+            results.add(result);
+            String op = operation.path("op").asText();
+            String sku = operation.path("sku").asText();
+            result.put("op", op);
+            result.put("sku", sku);
+            try {
+                if (StringUtils.isBlank(sku)) {
+                    throw new IllegalArgumentException("sku");
+                }
+                switch (StringUtils.lowerCase(op)) {
+                    case "add" -> valid.add(new ItemOperation(result, IpcMessage.Item_Add, BotListing.transformJson(operation)));
+                    case "update" -> valid.add(new ItemOperation(result, IpcMessage.Item_Update, BotListing.transformJson(operation)));
+                    case "remove" -> valid.add(new ItemOperation(result, IpcMessage.Item_Remove, sku));
+                    default -> throw new IllegalArgumentException("op");
+                }
+            } catch (IllegalArgumentException e) {
+                result.put("success", false);
+                result.put("data", ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+
+        //the sender batches whatever is queued into one write, the window only keeps the bot from being flooded
+        List<CompletableFuture<Boolean>> responses = new ArrayList<>(valid.size());
+        for (int i = 0; i < valid.size(); i++) {
+            responses.add(new CompletableFuture<>());
+        }
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(server.getConfig().itemsBatchMaxInFlight(), valid.size()); i++) {
+            sendNext(handler, valid, responses, next);
+        }
+
+        return CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).thenCompose(unused -> {
+            BotInfo info = handler.botInfo();
+            if (info == null || responses.stream().noneMatch(CompletableFuture::join)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            //the index was patched per item, one refresh per batch resyncs it with the bot
+            return priceListCache.synchronous().refresh(Long.parseUnsignedLong(info.id())).handle((refreshed, throwable) -> {
+                if (throwable != null) {
+                    log.warn("BotId: {}, Failed to refresh the pricelist after a batch: {}", info.id(), ExceptionUtils.getRootCauseMessage(throwable));
+                }
+                return null;
+            });
+        }).thenApply(unused -> {
+            ObjectNode response = mapper.createObjectNode();
+            response.put("success", true);
+            response.set("data", mapper.valueToTree(results));
+            return response;
+        });
+    }
+
+    /**
+     * Sends the next operation of the batch, its reply sends the one after it.
+     */
+    private void sendNext(IpcBotHandler handler, List<ItemOperation> operations, List<CompletableFuture<Boolean>> responses, AtomicInteger next) {
+        int index = next.getAndIncrement();
+        if (index >= operations.size()) {
+            return;
+        }
+        ItemOperation operation = operations.get(index);
+        //async, so replies that complete right away, e.g. of a closed handler, do not recurse through the whole batch
+        handler.awaitResponse(operation.type(), operation.data()).whenCompleteAsync((node, throwable) -> {
+            ObjectNode result = operation.result();
+            if (throwable != null) {
+                result.put("success", false);
+                result.put("data", ExceptionUtils.getRootCauseMessage(throwable));
+                responses.get(index).complete(false);
+            } else {
+                JsonNode success = Objects.requireNonNullElse(node.get("success"), BooleanNode.getFalse());
+                result.put("success", success.isBoolean() && success.asBoolean());
+                result.set("data", node.get("data"));
+                responses.get(index).complete(success.isBoolean() && success.asBoolean());
+            }
+            sendNext(handler, operations, responses, next);
+        }, responseExecutor);
+    }
+
+    public void getIpcStats(Context ctx) {
+        getBotHandler(ctx, handler -> {
+            ObjectNode response = mapper.createObjectNode();
+            response.put("success", true);
+            ObjectNode data = mapper.valueToTree(handler.senderStats());
+            data.put("coalescedRequests", handler.coalescedRequests());
+            data.put("protocol", handler.protocol().id());
+            response.set("data", data);
+            handleResponse(ctx, CompletableFuture.completedFuture(response));
+        });
+    }
+
+    public void getFleetPriceList(Context ctx) {
+        handleFleetResponse(ctx, (botId, handler) -> priceList(botId, priceListCache.get(botId)).thenApply(CachedResponse::body));
+    }
+
+    public void getFleetKeyPrices(Context ctx) {
+        handleFleetResponse(ctx, (botId, handler) -> keyPricesCache.get(botId).thenApply(CachedResponse::body));
+    }
+
+    public void fleetHaltStatus(Context ctx) {
+        handleFleetResponse(ctx, (botId, handler) -> handler.awaitResponse(IpcMessage.HaltStatus).thenApply(this::toBytes));
+    }
+
+    public void haltFleet(Context ctx) {
+        Boolean halt = BooleanUtils.toBooleanObject(ctx.queryParam("halt"));
+        if (halt == null) {
+            error(ctx, 400, "Invalid halt parameter");
+            return;
+        }
+        handleFleetResponse(ctx, (botId, handler) -> handler.awaitResponse(IpcMessage.Halt, halt).thenApply(this::toBytes));
+    }
+
+    /**
+     * Sends the request to every bot, or the ones listed in {@code bot_ids}, in parallel,
+     * and streams back what replied before the deadline given in the {@code timeout} query param.
+     */
+    private void handleFleetResponse(Context ctx, BiFunction<Long, IpcBotHandler, CompletableFuture<byte[]>> request) {
+        Collection<Long> botIds;
+        Duration timeout;
+        try {
+            botIds = getFleetBotIds(ctx);
+            timeout = getFleetTimeout(ctx);
+        } catch (NumberFormatException e) {
+            error(ctx, 400, ExceptionUtils.getRootCauseMessage(e));
+            return;
+        }
+
+        Map<Long, CompletableFuture<byte[]>> responses = new LinkedHashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long botId : botIds) {
+            server.getBotHandler(botId).ifPresentOrElse(
+                    handler -> responses.put(botId, request.apply(botId, handler)),
+                    () -> missing.add(botId));
+        }
+        FleetResponse fleetResponse = new FleetResponse(mapper, responses, missing, timeout);
+        ctx.future(() -> CompletableFuture.runAsync(() -> {
+            ctx.contentType(ContentType.APPLICATION_JSON);
+            try {
+                fleetResponse.writeTo(ctx.outputStream());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, fleetExecutor).exceptionally(throwable -> {
+            //the response is already partially written at this point
+            log.error("Error writing fleet response", throwable);
+            return null;
+        }));
+    }
+
+    private Collection<Long> getFleetBotIds(Context ctx) {
+        String ids = ctx.queryParam("bot_ids");
+        if (StringUtils.isBlank(ids)) {
+            return server.getAllBots().keySet();
+        }
+        Set<Long> botIds = new LinkedHashSet<>();
+        for (String id : StringUtils.split(ids, ',')) {
+            botIds.add(Long.parseUnsignedLong(id.strip()));
+        }
+        return botIds;
+    }
+
+    private Duration getFleetTimeout(Context ctx) {
+        Duration max = server.getConfig().fleetRequestTimeout();
+        String timeout = ctx.queryParam("timeout");
+        if (StringUtils.isBlank(timeout)) {
+            return max;
+        }
+        Duration requested = Duration.ofMillis(Long.parseLong(timeout));
+        return requested.compareTo(max) < 0 ? requested : max;
+    }
+
     private void getBotId(Context ctx, LongConsumer onValid) {
         String name = ctx.queryParam("bot_name");
         String id = ctx.queryParam("bot_id");
@@ -243,19 +749,20 @@ public class BotController {
             }
             return;
         }
-        Optional<IpcBotHandler> botHandler = server.getBotHandler(name);
-        if (botHandler.isEmpty()) {
+        Optional<Long> botId = botIdByName(name);
+        if (botId.isEmpty()) {
             error(ctx, 404, "Unable to find bot");
             return;
         }
+        onValid.accept(botId.get());
+    }
 
-        BotInfo info = botHandler.get().botInfo();
-        if (info == null) {
-            error(ctx, 404, "Unable to find bot");
-            return;
-        }
-        long parsed = Long.parseUnsignedLong(info.id());
-        onValid.accept(parsed);
+    private Optional<Long> botIdByName(String name) {
+        //bots known from a snapshot can be found by name before they reconnect
+        return server.getBotHandler(name)
+                .map(IpcBotHandler::botInfo)
+                .map(info -> Long.parseUnsignedLong(info.id()))
+                .or(() -> snapshotStore.botId(name));
     }
 
     private void getBotHandler(Context ctx, Consumer<IpcBotHandler> onValid) {
@@ -280,16 +787,394 @@ public class BotController {
     }
 
     private void handleResponse(Context ctx, CompletableFuture<JsonNode> response) {
-        response.thenAccept(node -> {
+        ctx.future(() -> response.thenAcceptAsync(node -> {
             JsonNode success = Objects.requireNonNullElse(node.get("success"), BooleanNode.getFalse());
             if (!success.isBoolean() || !success.asBoolean()) {
                 ctx.status(400);
             }
             ctx.json(node.toString());
+        }, responseExecutor).exceptionally(throwable -> {
+            error(ctx, 500, ExceptionUtils.getRootCauseMessage(throwable));
+            return null;
+        }));
+    }
+
+    private void handleCachedResponse(Context ctx, CompletableFuture<CachedResponse> response) {
+        handleCachedResponse(ctx, response, cached -> Optional.empty());
+    }
+
+    /**
+     * Falls back to the snapshot of the bot if the response can not be loaded, a stale response is marked with the Warning and Age headers.
+     */
+    private void handleCachedResponse(Context ctx, long botId, IpcMessage type, CompletableFuture<CachedResponse> response) {
+        CompletableFuture<CachedResponse> orSnapshot = response.exceptionallyCompose(throwable -> snapshotStore.get(botId, type)
+                .map(snapshot -> CompletableFuture.completedFuture(snapshot.response()))
+                .orElseGet(() -> CompletableFuture.failedFuture(throwable)));
+        handleCachedResponse(ctx, orSnapshot, cached -> snapshotStore.staleAge(botId, type, cached));
+    }
+
+    /**
+     * Serves the cached bytes as is, clients that send the current ETag in If-None-Match get a 304 without a body.
+     */
+    private void handleCachedResponse(Context ctx, CompletableFuture<CachedResponse> response, Function<CachedResponse, Optional<Duration>> staleAge) {
+        ctx.future(() -> response.thenAcceptAsync(cached -> {
+            staleAge.apply(cached).ifPresent(age -> {
+                ctx.header(Header.WARNING, "110 - \"Response is Stale\"");
+                ctx.header(Header.AGE, Long.toString(age.toSeconds()));
+            });
+            Representation representation = Representation.select(cached, ctx.header(Header.ACCEPT_ENCODING), ctx.header(Header.IF_NONE_MATCH));
+            //sent even while no variant is ready, the same url is served identity or gzip depending on the encoding and on timing
+            ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+            if (!cached.success()) {
+                ctx.status(400);
+            } else {
+                ctx.header(Header.ETAG, representation.etag());
+                ctx.header(Header.CACHE_CONTROL, "no-cache");
+                if (representation.notModified()) {
+                    ctx.status(HttpStatus.NOT_MODIFIED);
+                    return;
+                }
+            }
+            ctx.contentType(ContentType.APPLICATION_JSON);
+            if (representation.gzip() != null) {
+                //javalin leaves responses that already have a content encoding alone
+                ctx.header(Header.CONTENT_ENCODING, "gzip");
+                ctx.result(representation.gzip());
+            } else {
+                ctx.result(cached.stream());
+            }
+        }, responseExecutor).exceptionally(throwable -> {
+            error(ctx, 500, ExceptionUtils.getRootCauseMessage(throwable));
+            return null;
+        }));
+    }
+
+    /**
+     * The variant of a cached response a request gets, picked from the request headers alone so the selection can be benchmarked.
+     *
+     * @param gzip the gzip variant to send, null to send the body as is
+     */
+    record Representation(String etag, @Nullable byte[] gzip, boolean notModified) {
+        static Representation select(CachedResponse cached, @Nullable String acceptEncoding, @Nullable String ifNoneMatch) {
+            byte[] gzip = acceptsGzip(acceptEncoding) ? cached.gzipIfReady() : null;
+            return new Representation(gzip != null ? cached.gzipEtag() : cached.etag(), gzip, cached.matches(ifNoneMatch));
+        }
+    }
+
+    private static boolean acceptsGzip(@Nullable String acceptEncoding) {
+        if (StringUtils.isBlank(acceptEncoding)) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.split(";");
+            String name = parts[0].strip();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            boolean refused = parts.length > 1 && parts[1].strip().matches("q=0(\\.0*)?");
+            return !refused;
+        }
+        return false;
+    }
+
+    /**
+     * Entries are reloaded in the background once they are older than the refresh window,
+     * while the last value keeps being served until the hard expiry.
+     * Entries are weighed by their size, the maximum weight is set by the cache budget.
+     * The index built from an entry is dropped when the entry is evicted for its size, the weight of the indexes is reserved from the budget.
+     */
+    private Caffeine<Object, CachedResponse> cacheBuilder(IpcMessage type) {
+        Config config = server.getConfig();
+        Duration refresh = config.responseCacheRefresh(type);
+        Duration expire = config.responseCacheExpire(type);
+        Caffeine<Object, CachedResponse> builder = Caffeine.newBuilder()
+                .executor(responseExecutor)
+                .expireAfterWrite(expire)
+                .maximumWeight(cacheBudget.budget())
+                .weigher((Object key, CachedResponse response) -> response.weight())
+                .removalListener((Object key, @Nullable CachedResponse response, RemovalCause cause) -> {
+                    //expired entries keep their index, the next rebuild diffs against it instead of resetting the change log
+                    if (cause == RemovalCause.SIZE && response != null && key instanceof Long botId) {
+                        evictIndex(type, botId, response);
+                    }
+                })
+                .recordStats();
+        if (refresh.isPositive() && refresh.compareTo(expire) < 0) {
+            builder.refreshAfterWrite(refresh);
+        }
+        return builder;
+    }
+
+    /**
+     * Removes the index of the bot if it was built from the evicted response, an index of a newer response is kept.
+     */
+    private void evictIndex(IpcMessage type, long botId, CachedResponse response) {
+        switch (type) {
+            case Pricelist -> priceListIndexes.computeIfPresent(botId, (id, index) -> index.builtFrom(response) ? null : index);
+            case Trades -> tradeIndexes.computeIfPresent(botId, (id, index) -> index.builtFrom(response) ? null : index);
+            case Inventory -> inventoryIndexes.computeIfPresent(botId, (id, index) -> index.builtFrom(response) ? null : index);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * @return approximate heap size of the indexes, which keep their own copy of the cached bodies
+     */
+    private long indexWeight() {
+        long weight = 0;
+        for (PricelistIndex index : priceListIndexes.values()) {
+            weight += index.weight();
+        }
+        for (TradeIndex index : tradeIndexes.values()) {
+            weight += index.weight();
+        }
+        for (InventoryIndex index : inventoryIndexes.values()) {
+            weight += index.weight();
+        }
+        return weight;
+    }
+
+    private void registerBudget(IpcMessage type, AsyncLoadingCache<?, CachedResponse> cache) {
+        cacheBudget.register(type.name(), cache, server.getConfig().responseCacheFloor(type));
+    }
+
+    /**
+     * Warmup progress of one bot if it is specified, otherwise of all bots.
+     */
+    public void getWarmup(Context ctx) {
+        if (ctx.queryParam("bot_id") == null && ctx.queryParam("bot_name") == null) {
+            ObjectNode response = mapper.createObjectNode();
+            response.put("success", true);
+            response.set("data", mapper.valueToTree(cacheWarmer.progress()));
+            handleResponse(ctx, CompletableFuture.completedFuture(response));
+            return;
+        }
+        getBotId(ctx, botId -> {
+            Optional<CacheWarmer.Progress> progress = cacheWarmer.progress(botId);
+            if (progress.isEmpty()) {
+                error(ctx, 404, "Bot was not warmed");
+                return;
+            }
+            ObjectNode response = mapper.createObjectNode();
+            response.put("success", true);
+            response.set("data", mapper.valueToTree(progress.get()));
+            handleResponse(ctx, CompletableFuture.completedFuture(response));
+        });
+    }
+
+    public void getMetrics(Context ctx) {
+        ctx.future(() -> CompletableFuture.supplyAsync(() -> server.getMetrics().scrape(), responseExecutor).thenAccept(metrics -> {
+            ctx.contentType(Metrics.CONTENT_TYPE);
+            ctx.result(metrics);
         }).exceptionally(throwable -> {
             error(ctx, 500, ExceptionUtils.getRootCauseMessage(throwable));
             return null;
-        }).join();
+        }));
+    }
+
+    public void getCacheStats(Context ctx) {
+        ObjectNode response = mapper.createObjectNode();
+        response.put("success", true);
+        ObjectNode data = response.putObject("data");
+        data.put("budget", cacheBudget.budget());
+        data.set("caches", mapper.valueToTree(cacheBudget.stats()));
+        handleResponse(ctx, CompletableFuture.completedFuture(response));
+    }
+
+    private CompletableFuture<CachedResponse> load(long botId, IpcMessage type, Message message) {
+        Optional<IpcBotHandler> botHandler = server.getBotHandler(botId);
+        if (botHandler.isEmpty()) {
+            return CompletableFuture.failedFuture(new Exception("Bot handler not found"));
+        }
+        return botHandler.get().awaitResponse(message)
+                .thenApplyAsync(node -> {
+                    //the reply was just received, the executor only adds its queueing delay
+                    Instant received = Instant.now();
+                    return snapshot(botId, type, toCachedResponse(node), received);
+                }, responseExecutor);
+    }
+
+    private CachedResponse snapshot(long botId, IpcMessage type, CachedResponse response, Instant received) {
+        if (server.getConfig().snapshotEnabled()) {
+            snapshotStore.save(botId, type, response, received);
+        }
+        return response;
+    }
+
+    private CachedResponse toCachedResponse(JsonNode node) {
+        try {
+            return precompress(CachedResponse.of(mapper, node));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs the task on the response executor after every task queued for the bot before it,
+     * so the rebuilds and patches of one index never overlap and are applied in the order they were received.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> serially(Map<Long, CompletableFuture<?>> queue, long botId, Supplier<T> task) {
+        //a failed task does not hold up the ones queued after it
+        return (CompletableFuture<T>) queue.compute(botId, (id, tail) -> (tail != null ? tail : CompletableFuture.completedFuture(null))
+                .handleAsync((unused, throwable) -> task.get(), responseExecutor));
+    }
+
+    /**
+     * @return the current index of the bot, rebuilt if it was not built from this response, empty if the response has no pricelist
+     */
+    private CompletableFuture<Optional<PricelistIndex>> indexPriceList(long botId, CachedResponse response) {
+        PricelistIndex current = priceListIndexes.get(botId);
+        if (current != null && current.builtFrom(response)) {
+            return CompletableFuture.completedFuture(Optional.of(current));
+        }
+        return serially(priceListQueue, botId, () -> rebuildPriceList(botId, response));
+    }
+
+    /**
+     * Must only run on the pricelist queue of the bot, so the swap and the diff of the changes are atomic.
+     * An index built from a newer response is kept, a slow rebuild of an older one must not roll the pricelist back.
+     */
+    private Optional<PricelistIndex> rebuildPriceList(long botId, CachedResponse response) {
+        PricelistIndex current = priceListIndexes.get(botId);
+        if (current != null && (current.builtFrom(response) || current.newerThan(response))) {
+            return Optional.of(current);
+        }
+        try {
+            ChangeLog changes = changeLog(priceListChanges, botId, "pricelist");
+            Optional<PricelistIndex> index = PricelistIndex.of(mapper, response, this::precompress, changes);
+            index.ifPresent(built -> {
+                priceListIndexes.put(botId, built);
+                changes.diff(current != null ? current.entries() : null, built.entries());
+            });
+            return index;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private CompletableFuture<Optional<TradeIndex>> indexTrades(long botId, CachedResponse response) {
+        TradeIndex current = tradeIndexes.get(botId);
+        if (current != null && current.builtFrom(response)) {
+            return CompletableFuture.completedFuture(Optional.of(current));
+        }
+        return serially(tradeQueue, botId, () -> rebuildTrades(botId, response));
+    }
+
+    /**
+     * Must only run on the trade queue of the bot, like {@link #rebuildPriceList}.
+     */
+    private Optional<TradeIndex> rebuildTrades(long botId, CachedResponse response) {
+        TradeIndex current = tradeIndexes.get(botId);
+        if (current != null && (current.builtFrom(response) || current.newerThan(response))) {
+            return Optional.of(current);
+        }
+        try {
+            Optional<TradeIndex> index = TradeIndex.of(mapper, response);
+            index.ifPresent(built -> {
+                tradeIndexes.put(botId, built);
+                changeLog(tradeChanges, botId, "trades").diff(current != null ? current.entries() : null, built.entries());
+            });
+            return index;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the index of the bot, updated if it was built from another response, empty if the response has no inventory
+     */
+    private CompletableFuture<Optional<InventoryIndex>> indexInventory(long botId, CachedResponse response) {
+        InventoryIndex current = inventoryIndexes.get(botId);
+        if (current != null && current.builtFrom(response)) {
+            return CompletableFuture.completedFuture(Optional.of(current));
+        }
+        return serially(inventoryQueue, botId, () -> updateInventory(botId, response));
+    }
+
+    /**
+     * Must only run on the inventory queue of the bot, a newer inventory is never replaced by an older one.
+     */
+    private Optional<InventoryIndex> updateInventory(long botId, CachedResponse response) {
+        try {
+            InventoryIndex current = inventoryIndexes.get(botId);
+            if (current != null) {
+                if (current.update(response) >= 0) {
+                    return Optional.of(current);
+                }
+                return Optional.empty();
+            }
+            Optional<InventoryIndex> index = InventoryIndex.of(mapper, response, this::precompress);
+            index.ifPresent(built -> inventoryIndexes.put(botId, built));
+            return index;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param event name of the events the changes are published as
+     */
+    private ChangeLog changeLog(Map<Long, ChangeLog> changeLogs, long botId, String event) {
+        return changeLogs.computeIfAbsent(botId, id -> {
+            String bot = Long.toUnsignedString(botId);
+            return new ChangeLog(server.getConfig().changeLogSize(), new ChangeLog.Listener() {
+                @Override
+                public void onChange(ChangeLog.Change change) {
+                    eventHub.publish(botId, event, "{\"bot\":\"" + bot + "\",\"change\":" + change.toJson() + "}");
+                }
+
+                @Override
+                public void onReset(long version) {
+                    eventHub.publish(botId, event, "{\"bot\":\"" + bot + "\",\"version\":" + version + ",\"resync\":true}");
+                }
+            });
+        });
+    }
+
+    /**
+     * Must only run on the pricelist queue of the bot.
+     *
+     * @return whether the index was patched
+     */
+    private boolean patchPriceList(long botId, JsonNode node, boolean removed) {
+        PricelistIndex index = priceListIndexes.get(botId);
+        JsonNode success = Objects.requireNonNullElse(node.get("success"), BooleanNode.getFalse());
+        if (index == null || !success.asBoolean()) {
+            return false;
+        }
+        try {
+            if (removed) {
+                index.remove(node.get("data"));
+            } else {
+                index.put(node.path("data"));
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to patch pricelist index of {}", Long.toUnsignedString(botId), e);
+            priceListIndexes.remove(botId, index);
+            return false;
+        }
+    }
+
+    private byte[] toBytes(JsonNode node) {
+        try {
+            return mapper.writeValueAsBytes(node);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private CachedResponse precompress(CachedResponse response) {
+        Config config = server.getConfig();
+        if (storageMode == CachedResponse.StorageMode.GZIP) {
+            return response.compact(storageMode);
+        }
+        if (config.responsePrecompression()) {
+            response = response.withGzip(compressionExecutor, config.responseCompressionMinSize());
+        }
+        return response.compact(storageMode);
     }
 
     private Optional<BotListing> extractBotListing(Context ctx) {
@@ -318,4 +1203,12 @@ public class BotController {
         ctx.status(code);
         ctx.json(errorNode.toString());
     }
+
+    @Override
+    public void close() {
+        eventHub.close();
+        fleetExecutor.shutdown();
+        cacheBudget.close();
+        snapshotStore.close();
+    }
 }
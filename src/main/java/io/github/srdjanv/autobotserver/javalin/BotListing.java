@@ -32,6 +32,30 @@ public record BotListing(
         }
     }
 
+    /**
+     * Transforms a json listing, nested objects like {@code "buy": {"keys": 1}} are flattened to the dotted query param names,
+     * values keep their json type, so the intent can be given by its number like in the pricelist of the bot.
+     */
+    public static BotListing transformJson(JsonNode listing) throws IllegalArgumentException {
+        if (!listing.isObject()) {
+            throw new IllegalArgumentException("listing");
+        }
+        ObjectNode flattened = JsonNodeFactory.instance.objectNode();
+        flatten("", listing, flattened);
+        return transform(flattened);
+    }
+
+    private static void flatten(String prefix, JsonNode node, ObjectNode flattened) {
+        node.fields().forEachRemaining(field -> {
+            JsonNode value = field.getValue();
+            if (value.isObject()) {
+                flatten(prefix + field.getKey() + ".", value, flattened);
+            } else {
+                flattened.set(prefix + field.getKey(), value);
+            }
+        });
+    }
+
     public static BotListing transform(ObjectNode node) throws IllegalArgumentException {
         BotListingBuilder builder = BotListingBuilder.builder();
         NodeHandle nodeHandle = new NodeHandle(node);
@@ -136,7 +160,8 @@ public record BotListing(
             }
 
             JsonNode metalNode = node.getOr(key + ".metal", DoubleNode.valueOf(0));
-            if (metalNode.isDouble()) {
+            //whole amounts of metal are ints in json
+            if (metalNode.isNumber()) {
                 metal = metalNode.asDouble();
             } else if (metalNode.isTextual()) {
                 metal = Double.parseDouble(metalNode.asText());
@@ -0,0 +1,169 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.github.srdjanv.autobotserver.metrics.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Splits one memory budget between weight bounded caches.
+ * Every cache keeps its floor, the rest of the budget is periodically redistributed by demand,
+ * which is the weight a cache holds plus the weight it had to evict since the last rebalance.
+ * Floors that add up to more than the budget are scaled down to fit it.
+ * Memory that is derived from the cached entries but held outside the caches is reserved, its weight is taken from the shared part.
+ */
+@Slf4j
+public class CacheBudget implements AutoCloseable {
+    private final long budget;
+    private final Map<String, Managed> caches = new LinkedHashMap<>();
+    private final Map<String, LongSupplier> reserved = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("Cache budget").daemon(true).factory());
+
+    private static final class Managed {
+        private final AsyncCache<?, ?> cache;
+        private final long floor;
+        private long lastEvictionWeight;
+
+        private Managed(AsyncCache<?, ?> cache, long floor) {
+            this.cache = cache;
+            this.floor = floor;
+        }
+    }
+
+    /**
+     * @param budget total weight of all caches in bytes
+     */
+    public CacheBudget(long budget, Duration rebalanceInterval) {
+        this.budget = budget;
+        long interval = rebalanceInterval.toMillis();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                rebalance();
+            } catch (Exception e) {
+                log.error("Cache budget rebalance failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    /**
+     * @param cache must be weighted and record stats
+     * @param floor weight the cache can always hold, no matter the demand of the others
+     */
+    public synchronized void register(String name, AsyncCache<?, ?> cache, long floor) {
+        caches.put(name, new Managed(cache, floor));
+        long floors = 0;
+        for (Managed managed : caches.values()) {
+            floors += managed.floor;
+        }
+        //only warned once, when the floor of this cache pushes the sum over the budget
+        if (floors > budget && floors - floor <= budget) {
+            log.warn("Cache floors of {} bytes exceed the budget of {} bytes, they are scaled down", floors, budget);
+        }
+        rebalance();
+    }
+
+    /**
+     * @param weight current weight in bytes, read on every rebalance
+     */
+    public synchronized void reserve(String name, LongSupplier weight) {
+        reserved.put(name, weight);
+        rebalance();
+    }
+
+    public synchronized void rebalance() {
+        long floors = 0;
+        long totalDemand = 0;
+        Map<Managed, Long> demands = new HashMap<>();
+        for (Managed managed : caches.values()) {
+            Optional<Policy.Eviction<?, ?>> eviction = eviction(managed);
+            if (eviction.isEmpty()) {
+                continue;
+            }
+            long evictionWeight = managed.cache.synchronous().stats().evictionWeight();
+            long demand = eviction.get().weightedSize().orElse(0) + (evictionWeight - managed.lastEvictionWeight);
+            managed.lastEvictionWeight = evictionWeight;
+            demands.put(managed, demand);
+            floors += managed.floor;
+            totalDemand += demand;
+        }
+        long reservedWeight = 0;
+        for (LongSupplier weight : reserved.values()) {
+            reservedWeight += weight.getAsLong();
+        }
+        double floorScale = floors > budget ? budget / (double) floors : 1;
+        long shared = Math.max(budget - floors - reservedWeight, 0);
+        for (Map.Entry<Managed, Long> entry : demands.entrySet()) {
+            long floor = (long) (entry.getKey().floor * floorScale);
+            long share = totalDemand == 0 ? shared / demands.size() : (long) (shared * (entry.getValue() / (double) totalDemand));
+            eviction(entry.getKey()).ifPresent(eviction -> eviction.setMaximum(floor + share));
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Optional<Policy.Eviction<?, ?>> eviction(Managed managed) {
+        return (Optional) managed.cache.synchronous().policy().eviction();
+    }
+
+    public synchronized Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        caches.forEach((name, managed) -> {
+            CacheStats cacheStats = managed.cache.synchronous().stats();
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("entries", managed.cache.synchronous().estimatedSize());
+            eviction(managed).ifPresent(eviction -> {
+                values.put("weight", eviction.weightedSize().orElse(0));
+                values.put("maximumWeight", eviction.getMaximum());
+            });
+            values.put("floor", managed.floor);
+            values.put("hits", cacheStats.hitCount());
+            values.put("misses", cacheStats.missCount());
+            values.put("hitRate", cacheStats.hitRate());
+            values.put("evictions", cacheStats.evictionCount());
+            values.put("evictionWeight", cacheStats.evictionWeight());
+            values.put("loadFailures", cacheStats.loadFailureCount());
+            values.put("averageLoadPenaltyMillis", cacheStats.averageLoadPenalty() / 1_000_000);
+            stats.put(name, values);
+        });
+        reserved.forEach((name, weight) -> stats.put(name, Map.of("reservedWeight", weight.getAsLong())));
+        return stats;
+    }
+
+    public synchronized void collect(Metrics.Sink sink) {
+        caches.forEach((name, managed) -> {
+            String cache = StringUtils.lowerCase(name);
+            CacheStats stats = managed.cache.synchronous().stats();
+            sink.sample("cache_requests_total", "Cache lookups", Metrics.Type.COUNTER, stats.hitCount(), "cache", cache, "result", "hit");
+            sink.sample("cache_requests_total", "Cache lookups", Metrics.Type.COUNTER, stats.missCount(), "cache", cache, "result", "miss");
+            sink.sample("cache_loads_total", "Loads from the bots", Metrics.Type.COUNTER, stats.loadSuccessCount(), "cache", cache, "result", "success");
+            sink.sample("cache_loads_total", "Loads from the bots", Metrics.Type.COUNTER, stats.loadFailureCount(), "cache", cache, "result", "failure");
+            sink.sample("cache_load_seconds_total", "Time spent loading from the bots", Metrics.Type.COUNTER, stats.totalLoadTime() / 1e9, "cache", cache);
+            sink.sample("cache_evictions_total", "Entries evicted for size or expired", Metrics.Type.COUNTER, stats.evictionCount(), "cache", cache);
+            sink.sample("cache_entries", "Entries in the cache", Metrics.Type.GAUGE, managed.cache.synchronous().estimatedSize(), "cache", cache);
+            eviction(managed).ifPresent(eviction -> {
+                sink.sample("cache_weight_bytes", "Weight of the cached responses", Metrics.Type.GAUGE, eviction.weightedSize().orElse(0), "cache", cache);
+                sink.sample("cache_max_weight_bytes", "Share of the cache budget", Metrics.Type.GAUGE, eviction.getMaximum(), "cache", cache);
+            });
+        });
+        reserved.forEach((name, weight) -> sink.sample("cache_reserved_bytes", "Weight held outside the caches and taken from the budget",
+                Metrics.Type.GAUGE, weight.getAsLong(), "reserved", StringUtils.lowerCase(name)));
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
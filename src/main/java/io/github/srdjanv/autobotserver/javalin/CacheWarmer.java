@@ -0,0 +1,176 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reloads the response caches of a bot right after it registers, so the first requests hit a warm cache.
+ * Only a limited number of bots is warmed at once, the types of one bot are loaded one after another,
+ * so a mass reconnect does not flood the bots with requests.
+ */
+@Slf4j
+public class CacheWarmer {
+    private final Map<IpcMessage, AsyncLoadingCache<Long, CachedResponse>> caches;
+    private final Semaphore permits;
+    private final Queue<Warmup> queue = new ConcurrentLinkedQueue<>();
+    //the latest warmup of every bot, a newer registration replaces the previous one
+    private final Map<Long, Warmup> warmups = new ConcurrentHashMap<>();
+
+    public enum State {
+        QUEUED,
+        LOADING,
+        DONE,
+        FAILED,
+        //replaced by a newer registration of the bot
+        CANCELLED
+    }
+
+    /**
+     * @param millis how long the load took, 0 until it finished
+     * @param error  why the load failed, if it did
+     */
+    public record Step(State state, long millis, @Nullable String error) {
+    }
+
+    /**
+     * @param steps keyed by the lowercase type name
+     */
+    public record Progress(State state, long queuedAt, long startedAt, long finishedAt, Map<String, Step> steps) {
+    }
+
+    public CacheWarmer(Map<IpcMessage, AsyncLoadingCache<Long, CachedResponse>> caches, int concurrency) {
+        this.caches = caches;
+        this.permits = new Semaphore(Math.max(concurrency, 1));
+    }
+
+    /**
+     * Queues a warmup of the bot, types without a cache are skipped.
+     */
+    public void warm(long botId, List<IpcMessage> types) {
+        List<IpcMessage> warmed = types.stream().filter(caches::containsKey).distinct().toList();
+        if (warmed.isEmpty()) {
+            return;
+        }
+        Warmup warmup = new Warmup(botId, warmed);
+        Warmup previous = warmups.put(botId, warmup);
+        if (previous != null) {
+            previous.cancel();
+        }
+        queue.add(warmup);
+        drain();
+    }
+
+    private void drain() {
+        while (permits.tryAcquire()) {
+            Warmup warmup = queue.poll();
+            if (warmup == null) {
+                permits.release();
+                //a warmup queued between poll and release would otherwise wait for the next one
+                if (queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            warmup.run().whenComplete((unused, throwable) -> {
+                permits.release();
+                drain();
+            });
+        }
+    }
+
+    public Optional<Progress> progress(long botId) {
+        return Optional.ofNullable(warmups.get(botId)).map(Warmup::progress);
+    }
+
+    public Map<String, Progress> progress() {
+        Map<String, Progress> progress = new TreeMap<>();
+        warmups.forEach((botId, warmup) -> progress.put(Long.toUnsignedString(botId), warmup.progress()));
+        return progress;
+    }
+
+    private class Warmup {
+        private final long botId;
+        private final List<IpcMessage> types;
+        private final Map<IpcMessage, Step> steps = new ConcurrentHashMap<>();
+        private final long queuedAt = System.currentTimeMillis();
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile boolean cancelled;
+
+        private Warmup(long botId, List<IpcMessage> types) {
+            this.botId = botId;
+            this.types = types;
+            for (IpcMessage type : types) {
+                steps.put(type, new Step(State.QUEUED, 0, null));
+            }
+        }
+
+        private CompletableFuture<Void> run() {
+            startedAt = System.currentTimeMillis();
+            CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+            for (IpcMessage type : types) {
+                chain = chain.thenCompose(unused -> load(type));
+            }
+            return chain.whenComplete((unused, throwable) -> {
+                finishedAt = System.currentTimeMillis();
+                log.info("BotId: {}, Warmed {} in {}ms", Long.toUnsignedString(botId), types, finishedAt - startedAt);
+            });
+        }
+
+        private CompletableFuture<Void> load(IpcMessage type) {
+            if (cancelled) {
+                steps.put(type, new Step(State.CANCELLED, 0, null));
+                return CompletableFuture.completedFuture(null);
+            }
+            long start = System.nanoTime();
+            steps.put(type, new Step(State.LOADING, 0, null));
+            //a refresh keeps serving the previous entry until the new one is loaded
+            return caches.get(type).synchronous().refresh(botId).handle((response, throwable) -> {
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                if (throwable != null) {
+                    log.warn("BotId: {}, Failed to warm {}: {}", Long.toUnsignedString(botId), type, ExceptionUtils.getRootCauseMessage(throwable));
+                    steps.put(type, new Step(State.FAILED, millis, ExceptionUtils.getRootCauseMessage(throwable)));
+                } else {
+                    steps.put(type, new Step(State.DONE, millis, null));
+                }
+                return null;
+            });
+        }
+
+        private void cancel() {
+            cancelled = true;
+            //a queued warmup gives its place to the newer one
+            queue.remove(this);
+            types.forEach(type -> steps.computeIfPresent(type, (key, step) -> step.state() == State.QUEUED ? new Step(State.CANCELLED, 0, null) : step));
+        }
+
+        private Progress progress() {
+            Map<String, Step> steps = new LinkedHashMap<>();
+            Set<State> states = EnumSet.noneOf(State.class);
+            for (IpcMessage type : types) {
+                Step step = this.steps.get(type);
+                steps.put(StringUtils.lowerCase(type.name()), step);
+                states.add(step.state());
+            }
+            State state;
+            if (finishedAt == 0) {
+                state = startedAt != 0 ? State.LOADING : cancelled ? State.CANCELLED : State.QUEUED;
+            } else if (states.contains(State.FAILED)) {
+                state = State.FAILED;
+            } else {
+                state = states.contains(State.CANCELLED) ? State.CANCELLED : State.DONE;
+            }
+            return new Progress(state, queuedAt, startedAt, finishedAt, steps);
+        }
+    }
+}
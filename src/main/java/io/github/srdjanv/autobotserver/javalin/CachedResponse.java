@@ -0,0 +1,321 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A bot response serialized once when it is cached, so cache hits only copy bytes.
+ * Large bodies also get a gzip variant, compressed once in the background.
+ * The body can be stored compacted, either deflated or off heap, and is only decoded when a query needs it.
+ *
+ * @param sequence order in which the bodies were received, 0 for bodies restored from a snapshot
+ */
+public record CachedResponse(
+        Payload payload,
+        String etag,
+        boolean success,
+        @Nullable CompletableFuture<byte[]> gzip,
+        long sequence
+) {
+    private static final String GZIP_ETAG_SUFFIX = "-gz";
+    //json replies compress to about a tenth, charging a quarter leaves room for less repetitive bodies
+    private static final int GZIP_ESTIMATE_DIVISOR = 4;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    public enum StorageMode {
+        HEAP,
+        //deflated on the heap, the compressed bytes are also the gzip variant
+        GZIP,
+        //off heap in a direct buffer
+        DIRECT
+    }
+
+    /**
+     * How the serialized body is held.
+     */
+    public sealed interface Payload {
+        /**
+         * @return the serialized body, decoded or copied unless it is held on the heap as is
+         */
+        byte[] bytes();
+
+        InputStream stream();
+
+        /**
+         * @return length of the serialized body
+         */
+        int length();
+
+        /**
+         * @return bytes the payload holds
+         */
+        int size();
+    }
+
+    public record Heap(byte[] bytes) implements Payload {
+        @Override
+        public InputStream stream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public int size() {
+            return bytes.length;
+        }
+    }
+
+    public record Direct(ByteBuffer buffer) implements Payload {
+        private static Direct of(byte[] body) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(body.length);
+            buffer.put(body).flip();
+            return new Direct(buffer.asReadOnlyBuffer());
+        }
+
+        @Override
+        public byte[] bytes() {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+
+        @Override
+        public InputStream stream() {
+            return new ByteBufferBackedInputStream(buffer.duplicate());
+        }
+
+        @Override
+        public int length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public int size() {
+            return buffer.capacity();
+        }
+    }
+
+    public record Gzip(byte[] compressed, int length) implements Payload {
+        @Override
+        public byte[] bytes() {
+            try (InputStream in = stream()) {
+                return in.readNBytes(length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public InputStream stream() {
+            try {
+                return new GZIPInputStream(new ByteArrayInputStream(compressed), Math.min(Math.max(length, 512), 8192));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int size() {
+            return compressed.length;
+        }
+    }
+
+    public static CachedResponse of(ObjectMapper mapper, JsonNode node) throws IOException {
+        JsonNode success = Objects.requireNonNullElse(node.get("success"), BooleanNode.getFalse());
+        return of(mapper.writeValueAsBytes(node), success.isBoolean() && success.asBoolean());
+    }
+
+    /**
+     * Copies the value the parser is positioned on without building a tree, only the top level {@code success} field is inspected.
+     */
+    public static CachedResponse copyOf(ObjectMapper mapper, JsonParser parser) throws IOException {
+        boolean success = false;
+        ByteArrayBuilder out = new ByteArrayBuilder();
+        try (JsonGenerator generator = mapper.createGenerator(out)) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                generator.copyCurrentStructure(parser);
+            } else {
+                generator.writeStartObject();
+                String field;
+                while ((field = parser.nextFieldName()) != null) {
+                    JsonToken token = parser.nextToken();
+                    if ("success".equals(field) && token.isBoolean()) {
+                        success = token == JsonToken.VALUE_TRUE;
+                    }
+                    generator.writeFieldName(field);
+                    generator.copyCurrentStructure(parser);
+                }
+                generator.writeEndObject();
+            }
+        }
+        return of(out.toByteArray(), success);
+    }
+
+    public static CachedResponse of(byte[] body, boolean success) {
+        return new CachedResponse(new Heap(body), etag(body), success, null, SEQUENCE.incrementAndGet());
+    }
+
+    /**
+     * @return whether this body was received after the other one
+     */
+    public boolean newerThan(CachedResponse other) {
+        return sequence > other.sequence;
+    }
+
+    /**
+     * @return the serialized body, prefer {@link #stream()} when the body is only read once
+     */
+    public byte[] body() {
+        return payload.bytes();
+    }
+
+    public InputStream stream() {
+        return payload.stream();
+    }
+
+    public int length() {
+        return payload.length();
+    }
+
+    /**
+     * Starts compressing the body on the executor, bodies smaller than minSize are always sent as is.
+     */
+    public CachedResponse withGzip(Executor executor, int minSize) {
+        if (gzip != null || payload.length() < minSize) {
+            return this;
+        }
+        Payload source = payload;
+        return new CachedResponse(payload, etag, success,
+                CompletableFuture.supplyAsync(() -> gzip(source.bytes(), Deflater.BEST_COMPRESSION), executor), sequence);
+    }
+
+    /**
+     * Moves a heap body to the given storage, gzip storage compresses in the calling thread
+     * and uses the result as the gzip variant if it is smaller than the body.
+     */
+    public CachedResponse compact(StorageMode mode) {
+        if (!(payload instanceof Heap(byte[] body))) {
+            return this;
+        }
+        return switch (mode) {
+            case HEAP -> this;
+            case DIRECT -> new CachedResponse(Direct.of(body), etag, success, gzip, sequence);
+            case GZIP -> {
+                byte[] compressed = gzip(body, Deflater.BEST_SPEED);
+                if (compressed.length >= body.length) {
+                    yield this;
+                }
+                yield new CachedResponse(new Gzip(compressed, body.length), etag, success, CompletableFuture.completedFuture(compressed), sequence);
+            }
+        };
+    }
+
+    /**
+     * @return the gzip variant if it was built and is smaller than the body, null otherwise
+     */
+    @Nullable
+    public byte[] gzipIfReady() {
+        if (gzip == null || !gzip.isDone() || gzip.isCompletedExceptionally()) {
+            return null;
+        }
+        byte[] compressed = gzip.join();
+        return compressed.length < payload.length() ? compressed : null;
+    }
+
+    /**
+     * Caffeine weighs an entry once when it is inserted, which is usually before the gzip variant is built,
+     * so a variant that is still being compressed is charged at an estimate of its size.
+     *
+     * @return approximate size in bytes, including off heap payloads and the gzip variant, used to weigh cache entries
+     */
+    public int weight() {
+        int compressed = 0;
+        //a gzip payload is its own gzip variant
+        if (gzip != null && !(payload instanceof Gzip)) {
+            if (!gzip.isDone()) {
+                compressed = payload.length() / GZIP_ESTIMATE_DIVISOR;
+            } else if (!gzip.isCompletedExceptionally()) {
+                compressed = gzip.join().length;
+            }
+        }
+        return 64 + payload.size() + compressed;
+    }
+
+    public String gzipEtag() {
+        return StringUtils.removeEnd(etag, "\"") + GZIP_ETAG_SUFFIX + '"';
+    }
+
+    /**
+     * @param level {@link Deflater#BEST_COMPRESSION} for the background wire variant, which is built once per cache entry,
+     *              {@link Deflater#BEST_SPEED} for gzip storage, which compresses in the calling thread
+     */
+    private static byte[] gzip(byte[] body, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzip.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String etag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16)) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param ifNoneMatch value of the If-None-Match request header
+     */
+    public boolean matches(@Nullable String ifNoneMatch) {
+        if (StringUtils.isBlank(ifNoneMatch)) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.strip();
+            tag = StringUtils.removeStart(tag, "W/");
+            if (tag.equals("*") || tag.equals(etag) || tag.equals(gzipEtag())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
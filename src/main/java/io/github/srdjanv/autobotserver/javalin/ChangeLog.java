@@ -0,0 +1,159 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A bounded ring of the latest changes to a keyed collection, every change gets the next version.
+ * Clients that ask for changes older than what the ring still holds have to resync from the full response.
+ */
+public class ChangeLog {
+    private final Change[] ring;
+    @Nullable
+    private final Listener listener;
+    private long version;
+    //oldest version changes can still be listed from
+    private long floor;
+
+    /**
+     * @param value the serialized entry, null if it was removed
+     */
+    public record Change(long version, String key, byte @Nullable [] value) {
+        void writeTo(ByteArrayBuilder out) {
+            write(out, "{\"version\":" + version + ",\"key\":\"");
+            out.write(JsonStringEncoder.getInstance().quoteAsUTF8(key));
+            write(out, "\",\"value\":");
+            if (value == null) {
+                write(out, "null");
+            } else {
+                out.write(value);
+            }
+            out.append('}');
+        }
+
+        public String toJson() {
+            ByteArrayBuilder out = new ByteArrayBuilder(64 + (value != null ? value.length : 0));
+            writeTo(out);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Called while the log is locked, so implementations must not block.
+     */
+    public interface Listener {
+        void onChange(Change change);
+
+        void onReset(long version);
+    }
+
+    public ChangeLog(int capacity) {
+        this(capacity, null);
+    }
+
+    public ChangeLog(int capacity, @Nullable Listener listener) {
+        this.ring = new Change[Math.max(capacity, 1)];
+        this.listener = listener;
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    public synchronized void record(String key, byte @Nullable [] value) {
+        version++;
+        int slot = (int) (version % ring.length);
+        Change overwritten = ring[slot];
+        if (overwritten != null) {
+            floor = Math.max(floor, overwritten.version());
+        }
+        Change change = new Change(version, key, value);
+        ring[slot] = change;
+        if (listener != null) {
+            listener.onChange(change);
+        }
+    }
+
+    /**
+     * Drops all changes, every client has to resync.
+     */
+    public synchronized void reset() {
+        version++;
+        floor = version;
+        Arrays.fill(ring, null);
+        if (listener != null) {
+            listener.onReset(version);
+        }
+    }
+
+    /**
+     * Records the difference between two states of the collection, or resets the log if there is no previous state.
+     */
+    public synchronized void diff(@Nullable Map<String, byte[]> previous, Map<String, byte[]> current) {
+        if (previous == null) {
+            reset();
+            return;
+        }
+        for (Map.Entry<String, byte[]> entry : current.entrySet()) {
+            if (!Arrays.equals(previous.get(entry.getKey()), entry.getValue())) {
+                record(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : previous.keySet()) {
+            if (!current.containsKey(key)) {
+                record(key, null);
+            }
+        }
+    }
+
+    /**
+     * @return the changes made after the version, empty if they are no longer available
+     */
+    public synchronized Optional<List<Change>> since(long since) {
+        if (since < floor || since > version) {
+            return Optional.empty();
+        }
+        List<Change> changes = new ArrayList<>((int) (version - since));
+        for (long v = since + 1; v <= version; v++) {
+            changes.add(ring[(int) (v % ring.length)]);
+        }
+        return Optional.of(changes);
+    }
+
+    /**
+     * Serializes the changes after the version as a successful response,
+     * if they are no longer available only the current version and the resync marker are sent.
+     */
+    public byte[] toResponse(long since) {
+        long current;
+        Optional<List<Change>> changes;
+        synchronized (this) {
+            current = version;
+            changes = since(since);
+        }
+        ByteArrayBuilder out = new ByteArrayBuilder(256);
+        write(out, "{\"success\":true,\"data\":{\"version\":" + current + ",\"resync\":" + changes.isEmpty() + ",\"changes\":[");
+        boolean first = true;
+        for (Change change : changes.orElse(List.of())) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            change.writeTo(out);
+        }
+        write(out, "]}}");
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayBuilder out, String ascii) {
+        out.write(ascii.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import io.javalin.http.sse.SseClient;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans bot events out to server sent event subscribers.
+ * Publishing never blocks, every subscriber has a bounded queue that is drained by its own virtual thread,
+ * a subscriber that falls behind either loses its oldest events or is disconnected.
+ */
+@Slf4j
+public class EventHub implements AutoCloseable {
+    private static final long HEARTBEAT_SECONDS = 15;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong eventIds = new AtomicLong();
+    private final int bufferSize;
+    private final LagPolicy lagPolicy;
+
+    public enum LagPolicy {
+        //drop the oldest queued events and tell the subscriber how many it missed
+        DROP_OLDEST,
+        DISCONNECT
+    }
+
+    private record Event(long id, String type, String data) {
+    }
+
+    public EventHub(int bufferSize, LagPolicy lagPolicy) {
+        this.bufferSize = bufferSize;
+        this.lagPolicy = lagPolicy;
+    }
+
+    /**
+     * @param botId only events of this bot are sent, all events if null
+     */
+    public void subscribe(SseClient client, @Nullable Long botId) {
+        Subscriber subscriber = new Subscriber(client, botId);
+        client.keepAlive();
+        client.onClose(subscriber::close);
+        subscribers.add(subscriber);
+        subscriber.drainer = Thread.ofVirtual().name("SSE subscriber").start(subscriber::drain);
+        log.info("Event subscriber connected, bot: {}, subscribers: {}", botId == null ? "all" : Long.toUnsignedString(botId), subscribers.size());
+    }
+
+    public void publish(long botId, String type, String data) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        Event event = new Event(eventIds.incrementAndGet(), type, data);
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.botId == null || subscriber.botId == botId) {
+                subscriber.offer(event);
+            }
+        }
+    }
+
+    public int subscribers() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    private class Subscriber {
+        private final SseClient client;
+        @Nullable
+        private final Long botId;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(bufferSize);
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile Thread drainer;
+
+        private Subscriber(SseClient client, @Nullable Long botId) {
+            this.client = client;
+            this.botId = botId;
+        }
+
+        private void offer(Event event) {
+            while (!queue.offer(event)) {
+                if (lagPolicy == LagPolicy.DISCONNECT) {
+                    log.warn("Event subscriber fell behind by {} events, disconnecting", bufferSize);
+                    close();
+                    return;
+                }
+                if (queue.poll() != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                while (!closed.get() && !client.terminated()) {
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) {
+                        client.sendEvent("lagged", "{\"dropped\":" + lost + "}");
+                    }
+                    Event event = queue.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                    if (event == null) {
+                        client.sendComment("heartbeat");
+                        continue;
+                    }
+                    client.sendEvent(event.type(), event.data(), Long.toString(event.id()));
+                }
+            } catch (InterruptedException ignored) {
+            } catch (Exception e) {
+                log.info("Event subscriber disconnected: {}", e.getMessage());
+            } finally {
+                close();
+                //only the drainer touches the client, it is not safe to use from two threads
+                client.close();
+            }
+        }
+
+        /**
+         * Can be called from any thread, the drainer stops and closes the client.
+         */
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            subscribers.remove(this);
+            Thread thread = drainer;
+            if (thread != null && Thread.currentThread() != thread) {
+                thread.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the replies of many bots into one json object, every reply is written out as soon as it completes.
+ * Bots that did not reply before the deadline are listed in {@code timed_out}, unknown or closed bots in {@code missing}.
+ */
+@Slf4j
+public class FleetResponse {
+    private final ObjectMapper mapper;
+    private final Map<Long, CompletableFuture<byte[]>> responses;
+    private final List<Long> missing;
+    private final long deadline;
+    private final BlockingQueue<Long> completed = new LinkedBlockingQueue<>();
+
+    public FleetResponse(ObjectMapper mapper, Map<Long, CompletableFuture<byte[]>> responses, List<Long> missing, Duration timeout) {
+        this.mapper = mapper;
+        this.responses = responses;
+        this.missing = missing;
+        this.deadline = System.nanoTime() + timeout.toNanos();
+        responses.forEach((botId, response) -> response.whenComplete((bytes, throwable) -> completed.add(botId)));
+    }
+
+    /**
+     * Blocks until every bot replied or the deadline passed, should only be called from a virtual thread.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException, InterruptedException {
+        OutputStream out = new BufferedOutputStream(outputStream, 16 * 1024);
+        Map<Long, String> failed = new LinkedHashMap<>();
+        Set<Long> pending = new LinkedHashSet<>(responses.keySet());
+
+        write(out, "{\"success\":true,\"data\":{");
+        boolean first = true;
+        while (!pending.isEmpty()) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                break;
+            }
+            Long botId = completed.poll(wait, TimeUnit.NANOSECONDS);
+            if (botId == null) {
+                break;
+            }
+            pending.remove(botId);
+            CompletableFuture<byte[]> response = responses.get(botId);
+            if (response.isCompletedExceptionally()) {
+                failed.put(botId, response.handle((bytes, throwable) -> ExceptionUtils.getRootCauseMessage(throwable)).join());
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            write(out, "\"" + Long.toUnsignedString(botId) + "\":");
+            out.write(response.join());
+            out.flush();
+        }
+        write(out, "},\"failed\":{");
+        first = true;
+        for (Map.Entry<Long, String> entry : failed.entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            write(out, "\"" + Long.toUnsignedString(entry.getKey()) + "\":");
+            out.write(mapper.writeValueAsBytes(entry.getValue()));
+        }
+        write(out, "},\"timed_out\":");
+        writeIds(out, pending);
+        write(out, ",\"missing\":");
+        writeIds(out, missing);
+        write(out, ",\"complete\":" + (failed.isEmpty() && pending.isEmpty() && missing.isEmpty()) + "}");
+        out.flush();
+        if (!pending.isEmpty()) {
+            log.warn("Fleet request timed out for bots: {}", pending);
+        }
+    }
+
+    private static void writeIds(OutputStream out, Collection<Long> ids) throws IOException {
+        StringJoiner joiner = new StringJoiner("\",\"", "[\"", "\"]").setEmptyValue("[]");
+        for (Long id : ids) {
+            joiner.add(Long.toUnsignedString(id));
+        }
+        write(out, joiner.toString());
+    }
+
+    private static void write(OutputStream out, String ascii) throws IOException {
+        out.write(ascii.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,52 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import io.github.srdjanv.autobotserver.metrics.Histogram;
+import io.github.srdjanv.autobotserver.metrics.Metrics;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and status codes per route, once a route was seen its metrics are found without allocating.
+ */
+public class HttpMetrics {
+    private final Metrics metrics;
+    private final Map<String, Map<HandlerType, Route>> routes = new ConcurrentHashMap<>();
+
+    private record Route(Histogram latency, Map<Integer, LongAdder> responses) {
+    }
+
+    public HttpMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Request logger, called once the response, including async ones, was completed.
+     */
+    public void record(Context ctx, Float executionTimeMs) {
+        String path = StringUtils.defaultIfEmpty(ctx.endpointHandlerPath(), "unmatched");
+        HandlerType method = ctx.method();
+        Map<HandlerType, Route> methods = routes.get(path);
+        if (methods == null) {
+            methods = routes.computeIfAbsent(path, key -> new ConcurrentHashMap<>());
+        }
+        Route route = methods.get(method);
+        if (route == null) {
+            route = methods.computeIfAbsent(method, key -> new Route(metrics.histogram("http_request_duration_seconds",
+                    "Time until the response was completed", Histogram.LATENCY_BUCKETS, "method", method.name(), "route", path),
+                    new ConcurrentHashMap<>()));
+        }
+        route.latency().observe(executionTimeMs / 1000.0);
+        int status = ctx.statusCode();
+        LongAdder responses = route.responses().get(status);
+        if (responses == null) {
+            responses = route.responses().computeIfAbsent(status, key -> metrics.counter("http_responses_total",
+                    "Responses by status code", "method", method.name(), "route", path, "status", Integer.toString(status)));
+        }
+        responses.increment();
+    }
+}
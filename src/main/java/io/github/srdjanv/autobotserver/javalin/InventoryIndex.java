@@ -0,0 +1,287 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.ArrayUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+/**
+ * The inventory of a bot as sku to sorted asset ids, without keeping any of the item json.
+ * Bots only send whole inventories, so every newer reply is parsed in full,
+ * but it is diffed per sku, so the arrays of unchanged skus are kept and the summary is only rebuilt after a change.
+ */
+public class InventoryIndex {
+    //map entry, key and array header of a sku
+    private static final int SKU_OVERHEAD = 104;
+
+    private final ObjectMapper mapper;
+    private final UnaryOperator<CachedResponse> finisher;
+    private volatile State state;
+    @Nullable
+    private volatile Summary summary;
+
+    private record State(CachedResponse source, Map<String, long[]> assets, int items, long weight) {
+    }
+
+    private record Summary(Map<String, long[]> assets, CachedResponse response) {
+    }
+
+    private InventoryIndex(ObjectMapper mapper, UnaryOperator<CachedResponse> finisher, State state) {
+        this.mapper = mapper;
+        this.finisher = finisher;
+        this.state = state;
+    }
+
+    /**
+     * @param finisher applied to the summary response, e.g. to precompress it
+     * @return empty if the reply does not contain an inventory
+     */
+    public static Optional<InventoryIndex> of(ObjectMapper mapper, CachedResponse response, UnaryOperator<CachedResponse> finisher) throws IOException {
+        return parse(mapper, response).map(assets -> new InventoryIndex(mapper, finisher, state(response, assets)));
+    }
+
+    /**
+     * Replaces the inventory with a newer full reply, skus whose assets did not change keep their arrays.
+     * A reply older than the one the index holds is ignored, an identical one is not parsed again.
+     *
+     * @return number of skus that changed, -1 if the reply does not contain an inventory
+     */
+    public synchronized int update(CachedResponse response) throws IOException {
+        State current = state;
+        if (current.source() == response || current.source().newerThan(response)) {
+            return 0;
+        }
+        if (response.success() && response.etag().equals(current.source().etag())) {
+            state = new State(response, current.assets(), current.items(), current.weight());
+            return 0;
+        }
+        Optional<Map<String, long[]>> parsed = parse(mapper, response);
+        if (parsed.isEmpty()) {
+            return -1;
+        }
+        Map<String, long[]> previous = state.assets();
+        Map<String, long[]> assets = parsed.get();
+        int changed = 0;
+        for (Map.Entry<String, long[]> entry : assets.entrySet()) {
+            long[] old = previous.get(entry.getKey());
+            if (Arrays.equals(old, entry.getValue())) {
+                entry.setValue(old);
+            } else {
+                changed++;
+            }
+        }
+        for (String sku : previous.keySet()) {
+            if (!assets.containsKey(sku)) {
+                changed++;
+            }
+        }
+        //an unchanged inventory keeps its map, so the summary stays valid
+        state = state(response, changed > 0 ? assets : previous);
+        return changed;
+    }
+
+    private static State state(CachedResponse source, Map<String, long[]> assets) {
+        int items = 0;
+        long weight = 0;
+        for (Map.Entry<String, long[]> entry : assets.entrySet()) {
+            items += entry.getValue().length;
+            weight += SKU_OVERHEAD + entry.getKey().length() + (long) entry.getValue().length * Long.BYTES;
+        }
+        return new State(source, assets, items, weight);
+    }
+
+    /**
+     * Reads the {@code data} of the reply, either an object of sku to items or an array of items with a sku,
+     * items can be asset ids or objects with an {@code id} or {@code assetid}.
+     */
+    private static Optional<Map<String, long[]>> parse(ObjectMapper mapper, CachedResponse response) throws IOException {
+        if (!response.success()) {
+            return Optional.empty();
+        }
+        try (JsonParser parser = mapper.createParser(response.stream())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return Optional.empty();
+            }
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                JsonToken token = parser.nextToken();
+                if (!"data".equals(field)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (token == JsonToken.START_OBJECT) {
+                    return Optional.of(parseBySku(parser));
+                }
+                if (token == JsonToken.START_ARRAY) {
+                    return Optional.of(parseItems(parser));
+                }
+                return Optional.empty();
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Map<String, long[]> parseBySku(JsonParser parser) throws IOException {
+        Map<String, long[]> assets = new HashMap<>();
+        LongBuffer ids = new LongBuffer();
+        String sku;
+        while ((sku = parser.nextFieldName()) != null) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            ids.clear();
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                long id = assetId(parser, token);
+                if (id != 0) {
+                    ids.add(id);
+                }
+            }
+            assets.put(sku, ids.toSortedArray());
+        }
+        return assets;
+    }
+
+    private static Map<String, long[]> parseItems(JsonParser parser) throws IOException {
+        Map<String, LongBuffer> buffers = new HashMap<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String sku = null;
+            long id = 0;
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "sku" -> sku = parser.getValueAsString();
+                    case "id", "assetid" -> id = assetId(parser, token);
+                    default -> parser.skipChildren();
+                }
+            }
+            if (sku != null && id != 0) {
+                buffers.computeIfAbsent(sku, s -> new LongBuffer()).add(id);
+            }
+        }
+        Map<String, long[]> assets = new HashMap<>(buffers.size());
+        buffers.forEach((sku, ids) -> assets.put(sku, ids.toSortedArray()));
+        return assets;
+    }
+
+    private static long assetId(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        if (token == JsonToken.VALUE_STRING) {
+            try {
+                return Long.parseLong(parser.getText());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        if (token != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return 0;
+        }
+        long id = 0;
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            JsonToken value = parser.nextToken();
+            if ("id".equals(field) || "assetid".equals(field)) {
+                id = assetId(parser, value);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return id;
+    }
+
+    public boolean builtFrom(CachedResponse response) {
+        return state.source() == response;
+    }
+
+    /**
+     * @return the sorted asset ids of the sku, empty if the bot has none
+     */
+    public long[] assets(String sku) {
+        return state.assets().getOrDefault(sku, ArrayUtils.EMPTY_LONG_ARRAY);
+    }
+
+    public int items() {
+        return state.items();
+    }
+
+    public int skus() {
+        return state.assets().size();
+    }
+
+    /**
+     * @return approximate heap size in bytes, without the reply it was built from which is weighed by its cache
+     */
+    public long weight() {
+        Summary current = summary;
+        return state.weight() + (current != null ? current.response().weight() : 0);
+    }
+
+    /**
+     * @return the item count of every sku, only rebuilt after the inventory changed
+     */
+    public CachedResponse summary() {
+        State snapshot = state;
+        Summary current = summary;
+        if (current != null && current.assets() == snapshot.assets()) {
+            return current.response();
+        }
+        ByteArrayBuilder out = new ByteArrayBuilder(snapshot.assets().size() * 24 + 64);
+        write(out, "{\"success\":true,\"data\":{\"items\":" + snapshot.items() + ",\"skus\":" + snapshot.assets().size() + ",\"counts\":{");
+        boolean first = true;
+        for (Map.Entry<String, long[]> entry : snapshot.assets().entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"');
+            out.write(JsonStringEncoder.getInstance().quoteAsUTF8(entry.getKey()));
+            write(out, "\":" + entry.getValue().length);
+        }
+        write(out, "}}}");
+        CachedResponse response = finisher.apply(CachedResponse.of(out.toByteArray(), true));
+        summary = new Summary(snapshot.assets(), response);
+        return response;
+    }
+
+    private static void write(ByteArrayBuilder out, String text) {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class LongBuffer {
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        long[] toSortedArray() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
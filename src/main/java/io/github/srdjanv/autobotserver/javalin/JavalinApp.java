@@ -28,11 +28,14 @@ public class JavalinApp implements AutoCloseable {
         this.botController = new BotController(autobotIpcServer);
         this.config = config;
         this.auth = new Auth(config);
+        HttpMetrics httpMetrics = new HttpMetrics(autobotIpcServer.getMetrics());
 
         int serverPort = config.serverPort();
         String serverHost = config.serverHost();
 
         javalin = Javalin.create(javalinConfig -> {
+            javalinConfig.useVirtualThreads = config.httpVirtualThreads();
+            javalinConfig.requestLogger.http(httpMetrics::record);
             if (config.useSsl()) {
                 sslPlugin = buildSslPlugin(config);
                 javalinConfig.registerPlugin(sslPlugin);
@@ -40,6 +43,7 @@ public class JavalinApp implements AutoCloseable {
             javalinConfig.router.mount(router -> {
                 router.beforeMatched(auth::handleAccess);
             }).apiBuilder(() -> {
+                get("metrics", botController::getMetrics);
                 path("v1", () -> {
                     path("bots", () -> {
                         get(botController::getBots);
@@ -53,9 +57,15 @@ public class JavalinApp implements AutoCloseable {
                     });
                     path("price_list", () -> {
                         get(botController::getPriceList);
+                        path("changes", () -> {
+                            get(botController::getPriceListChanges);
+                        });
                     });
                     path("trades", () -> {
                         get(botController::getTrades);
+                        path("changes", () -> {
+                            get(botController::getTradeChanges);
+                        });
                     });
                     path("remove_item", () -> {
                         delete(botController::removeItem);
@@ -66,12 +76,42 @@ public class JavalinApp implements AutoCloseable {
                     path("add_item", () -> {
                         post(botController::addItem);
                     });
+                    path("items", () -> {
+                        path("batch", () -> {
+                            post(botController::batchItems);
+                        });
+                    });
                     path("inventory", () -> {
                         get(botController::getInventory);
+                        path("summary", () -> {
+                            get(botController::getInventorySummary);
+                        });
                     });
                     path("user_inventory", () -> {
                         get(botController::getUserInventory);
                     });
+                    path("ipc_stats", () -> {
+                        get(botController::getIpcStats);
+                    });
+                    path("warmup", () -> {
+                        get(botController::getWarmup);
+                    });
+                    path("cache_stats", () -> {
+                        get(botController::getCacheStats);
+                    });
+                    sse("events", botController::subscribeEvents);
+                    path("fleet", () -> {
+                        path("price_list", () -> {
+                            get(botController::getFleetPriceList);
+                        });
+                        path("key_prices", () -> {
+                            get(botController::getFleetKeyPrices);
+                        });
+                        path("halt", () -> {
+                            post(botController::haltFleet);
+                            get(botController::fleetHaltStatus);
+                        });
+                    });
                 });
             });
         }).start(serverHost, serverPort);
@@ -91,5 +131,6 @@ public class JavalinApp implements AutoCloseable {
     @Override
     public void close() {
         javalin.jettyServer().stop();
+        botController.close();
     }
 }
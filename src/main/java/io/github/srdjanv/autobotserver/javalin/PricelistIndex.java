@@ -0,0 +1,261 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+/**
+ * The pricelist of a bot keyed by sku, every entry is kept as its serialized bytes.
+ * Built from a full {@code pricelist} reply and patched with the item replies,
+ * the full response is only rebuilt on the first read after a change.
+ * The rebuilt response keeps the order of the reply, its other fields and the entries that have no sku.
+ */
+public class PricelistIndex {
+    //map entry, key and array header of a slot
+    private static final int SLOT_OVERHEAD = 96;
+
+    private final ObjectMapper mapper;
+    private final UnaryOperator<CachedResponse> finisher;
+    private final ChangeLog changes;
+    //every entry in the order of the reply, entries without a sku are kept under a key object of their own
+    private final LinkedHashMap<Object, byte[]> slots = new LinkedHashMap<>();
+    //bots send the list either as an object keyed by sku or as an array of entries
+    private final boolean array;
+    //the reply up to and after the list, with every field other than data
+    private final byte[] prefix;
+    private final byte[] suffix;
+    //the full reply the index was built from
+    private final CachedResponse source;
+    private long version;
+    private Snapshot snapshot;
+    //weight of the slots
+    private long slotWeight;
+
+    private record Snapshot(long version, CachedResponse response) {
+    }
+
+    private PricelistIndex(ObjectMapper mapper, UnaryOperator<CachedResponse> finisher, ChangeLog changes,
+                           boolean array, byte[] prefix, byte[] suffix, CachedResponse source) {
+        this.mapper = mapper;
+        this.finisher = finisher;
+        this.changes = changes;
+        this.array = array;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.source = source;
+        this.snapshot = new Snapshot(0, source);
+    }
+
+    /**
+     * @param response a successful {@code pricelist} reply
+     * @param finisher applied to every rebuilt response, e.g. to precompress it
+     * @param changes  log the patches are recorded in
+     * @return empty if the reply does not contain a pricelist
+     */
+    public static Optional<PricelistIndex> of(ObjectMapper mapper, CachedResponse response,
+                                              UnaryOperator<CachedResponse> finisher, ChangeLog changes) throws IOException {
+        if (!response.success()) {
+            return Optional.empty();
+        }
+        try (JsonParser parser = mapper.createParser(response.stream())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return Optional.empty();
+            }
+            ByteArrayBuilder prefix = new ByteArrayBuilder();
+            prefix.append('{');
+            Map<Object, byte[]> slots = null;
+            boolean array = false;
+            ByteArrayBuilder suffix = new ByteArrayBuilder();
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                JsonToken token = parser.nextToken();
+                if (slots != null || !"data".equals(field)) {
+                    ByteArrayBuilder out = slots == null ? prefix : suffix;
+                    if (slots != null || prefix.size() > 1) {
+                        out.append(',');
+                    }
+                    writeName(out, field);
+                    copy(mapper, parser, out);
+                    continue;
+                }
+                if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+                    return Optional.empty();
+                }
+                array = token == JsonToken.START_ARRAY;
+                slots = new LinkedHashMap<>();
+                read(mapper, parser, array, slots);
+            }
+            if (slots == null) {
+                return Optional.empty();
+            }
+            if (prefix.size() > 1) {
+                prefix.append(',');
+            }
+            writeName(prefix, "data");
+            suffix.append('}');
+            PricelistIndex index = new PricelistIndex(mapper, finisher, changes, array, prefix.toByteArray(), suffix.toByteArray(), response);
+            index.slots.putAll(slots);
+            slots.forEach((key, value) -> index.slotWeight += slotWeight(key, value));
+            return Optional.of(index);
+        }
+    }
+
+    private static void read(ObjectMapper mapper, JsonParser parser, boolean array, Map<Object, byte[]> slots) throws IOException {
+        if (array) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token != JsonToken.START_OBJECT) {
+                    ByteArrayBuilder out = new ByteArrayBuilder();
+                    copy(mapper, parser, out);
+                    slots.put(new Object(), out.toByteArray());
+                    continue;
+                }
+                JsonNode entry = mapper.readTree(parser);
+                String sku = entry.path("sku").asText();
+                //a repeated sku is carried through like an entry without one, patches and lookups use the first
+                Object key = StringUtils.isNotBlank(sku) && !slots.containsKey(sku) ? sku : new Object();
+                slots.put(key, mapper.writeValueAsBytes(entry));
+            }
+            return;
+        }
+        String sku;
+        while ((sku = parser.nextFieldName()) != null) {
+            parser.nextToken();
+            ByteArrayBuilder out = new ByteArrayBuilder();
+            copy(mapper, parser, out);
+            slots.put(sku, out.toByteArray());
+        }
+    }
+
+    private static void copy(ObjectMapper mapper, JsonParser parser, ByteArrayBuilder out) throws IOException {
+        try (JsonGenerator generator = mapper.createGenerator(out)) {
+            generator.copyCurrentStructure(parser);
+        }
+    }
+
+    private static void writeName(ByteArrayBuilder out, String name) {
+        out.append('"');
+        out.write(JsonStringEncoder.getInstance().quoteAsUTF8(name));
+        out.append('"');
+        out.append(':');
+    }
+
+    private static long slotWeight(Object key, byte[] value) {
+        return SLOT_OVERHEAD + (key instanceof String sku ? sku.length() : 0) + value.length;
+    }
+
+    public boolean builtFrom(CachedResponse response) {
+        return source == response;
+    }
+
+    /**
+     * @return whether the index was built from a reply received after the response
+     */
+    public boolean newerThan(CachedResponse response) {
+        return source.newerThan(response);
+    }
+
+    public synchronized Optional<byte[]> entry(String sku) {
+        return Optional.ofNullable(slots.get(sku));
+    }
+
+    /**
+     * @return a copy of the entries that have a sku, keyed by it
+     */
+    public synchronized Map<String, byte[]> entries() {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        slots.forEach((key, value) -> {
+            if (key instanceof String sku) {
+                entries.put(sku, value);
+            }
+        });
+        return entries;
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * @return approximate heap size in bytes, without the reply it was built from which is weighed by its cache
+     */
+    public synchronized long weight() {
+        CachedResponse rebuilt = snapshot.response();
+        return slotWeight + prefix.length + suffix.length + (rebuilt != source ? rebuilt.weight() : 0);
+    }
+
+    /**
+     * New skus are appended, updated ones keep their place.
+     *
+     * @param entry the {@code data} of an {@code itemAdded} or {@code itemUpdated} reply
+     */
+    public synchronized void put(JsonNode entry) throws IOException {
+        String sku = entry.path("sku").asText();
+        if (StringUtils.isBlank(sku)) {
+            return;
+        }
+        byte[] bytes = mapper.writeValueAsBytes(entry);
+        byte[] previous = slots.put(sku, bytes);
+        if (previous != null) {
+            slotWeight -= slotWeight(sku, previous);
+        }
+        slotWeight += slotWeight(sku, bytes);
+        version++;
+        changes.record(sku, bytes);
+    }
+
+    /**
+     * @param entry the {@code data} of an {@code itemRemoved} reply, either the removed entry or its sku
+     */
+    public synchronized void remove(@Nullable JsonNode entry) {
+        if (entry == null) {
+            return;
+        }
+        String sku = entry.isTextual() ? entry.asText() : entry.path("sku").asText();
+        byte[] removed = slots.remove(sku);
+        if (removed != null) {
+            slotWeight -= slotWeight(sku, removed);
+            version++;
+            changes.record(sku, null);
+        }
+    }
+
+    /**
+     * @return the full {@code pricelist} reply, only rebuilt if the index changed since the last call
+     */
+    public synchronized CachedResponse response() {
+        if (snapshot.version() == version) {
+            return snapshot.response();
+        }
+        ByteArrayBuilder out = new ByteArrayBuilder(Math.max(snapshot.response().length(), 512));
+        out.write(prefix);
+        out.append(array ? '[' : '{');
+        boolean first = true;
+        for (Map.Entry<Object, byte[]> slot : slots.entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            if (!array) {
+                writeName(out, (String) slot.getKey());
+            }
+            out.write(slot.getValue());
+        }
+        out.append(array ? ']' : '}');
+        out.write(suffix);
+        snapshot = new Snapshot(version, finisher.apply(CachedResponse.of(out.toByteArray(), true)));
+        return snapshot.response();
+    }
+}
@@ -0,0 +1,279 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.srdjanv.autobotserver.ipc.BotInfo;
+import io.github.srdjanv.autobotserver.ipc.messages.IpcMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last known responses and bot infos on disk, so a restarted server can serve them as stale until the bots reconnect.
+ * Every entry is its own file that is only rewritten when the response changed, and is memory mapped when the server starts.
+ */
+@Slf4j
+public class SnapshotStore implements AutoCloseable {
+    //the responses worth keeping, user inventories are per user and short lived
+    public static final Set<IpcMessage> TYPES = Set.of(IpcMessage.KeyPrice, IpcMessage.Pricelist, IpcMessage.Trades, IpcMessage.Inventory);
+    private static final int MAGIC = 0x41425350;
+    private static final int FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".snap";
+    private static final String BOT_INFO = "info";
+    //magic, version, savedAt, success and the etag length
+    private static final int FIXED_HEADER_SIZE = 19;
+
+    private final Path directory;
+    private final ObjectMapper mapper;
+    private final Map<Key, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final Map<Long, BotInfo> bots = new ConcurrentHashMap<>();
+    //latest response per entry that still has to be written, older ones are skipped
+    private final Map<Key, Pending> pendingWrites = new ConcurrentHashMap<>();
+    //etag of the response every entry has on disk
+    private final Map<Key, String> writtenEtags = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("Snapshot writer").daemon(true).factory());
+
+    private record Key(long botId, IpcMessage type) {
+        private String fileName() {
+            return Long.toUnsignedString(botId) + "." + StringUtils.lowerCase(type.name()) + EXTENSION;
+        }
+    }
+
+    private record Pending(CachedResponse response, Instant receivedAt) {
+    }
+
+    /**
+     * @param savedAt when the response was received from the bot
+     */
+    public record Snapshot(CachedResponse response, Instant savedAt) {
+        public Duration age() {
+            return Duration.between(savedAt, Instant.now());
+        }
+    }
+
+    public SnapshotStore(Path directory, ObjectMapper mapper) {
+        this.directory = directory;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Maps every snapshot that is younger than maxAge, older and unreadable snapshots are deleted.
+     * The header is read before anything is mapped, a mapped file can not be deleted on every platform.
+     */
+    public void load(Duration maxAge) throws IOException {
+        Files.createDirectories(directory);
+        Instant oldest = Instant.now().minus(maxAge);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                String[] name = StringUtils.removeEnd(file.getFileName().toString(), EXTENSION).split("\\.");
+                try {
+                    long botId = Long.parseUnsignedLong(name[0]);
+                    boolean botInfo = name[1].equals(BOT_INFO);
+                    IpcMessage type = botInfo ? null : TYPES.stream()
+                            .filter(value -> StringUtils.equalsIgnoreCase(value.name(), name[1]))
+                            .findFirst()
+                            .orElseThrow(() -> new IOException("Unknown snapshot type " + name[1]));
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                        Header header = Header.read(channel);
+                        if (!header.savedAt().isBefore(oldest)) {
+                            if (botInfo) {
+                                //tiny, so it is read instead of mapped
+                                bots.put(botId, mapper.readValue(read(channel, header.offset(), header.length()).array(), BotInfo.class));
+                            } else {
+                                //the mapping outlives both the channel and a later replacement of the file
+                                ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, header.offset(), header.length()).asReadOnlyBuffer();
+                                CachedResponse response = new CachedResponse(new CachedResponse.Direct(body), header.etag(), header.success(), null, 0);
+                                Key key = new Key(botId, type);
+                                snapshots.put(key, new Snapshot(response, header.savedAt()));
+                                writtenEtags.put(key, response.etag());
+                            }
+                            continue;
+                        }
+                    }
+                    delete(file);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Discarding snapshot {}: {}", file, e.getMessage());
+                    delete(file);
+                }
+            }
+        }
+        log.info("Loaded {} snapshots of {} bots from {}", snapshots.size(), bots.size(), directory);
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete snapshot {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * @param offset position of the body in the file
+     */
+    private record Header(Instant savedAt, boolean success, String etag, long offset, int length) {
+        private static Header read(FileChannel channel) throws IOException {
+            ByteBuffer fixed = SnapshotStore.read(channel, 0, FIXED_HEADER_SIZE);
+            if (fixed.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot");
+            }
+            int version = fixed.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            Instant savedAt = Instant.ofEpochMilli(fixed.getLong());
+            boolean success = fixed.get() != 0;
+            int etagLength = Short.toUnsignedInt(fixed.getShort());
+            ByteBuffer rest = SnapshotStore.read(channel, FIXED_HEADER_SIZE, etagLength + Integer.BYTES);
+            byte[] etag = new byte[etagLength];
+            rest.get(etag);
+            int length = rest.getInt();
+            long offset = FIXED_HEADER_SIZE + etagLength + Integer.BYTES;
+            if (length != channel.size() - offset) {
+                throw new IOException("Truncated snapshot");
+            }
+            return new Header(savedAt, success, new String(etag, StandardCharsets.US_ASCII), offset, length);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated snapshot");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Queues the response to be written, unsuccessful responses and unchanged ones are not written.
+     * The live response replaces the snapshot loaded at startup.
+     *
+     * @param receivedAt when the response was received from the bot, the age of the snapshot is counted from it
+     */
+    public void save(long botId, IpcMessage type, CachedResponse response, Instant receivedAt) {
+        if (!TYPES.contains(type) || !response.success()) {
+            return;
+        }
+        Key key = new Key(botId, type);
+        snapshots.remove(key);
+        if (response.etag().equals(writtenEtags.get(key))) {
+            return;
+        }
+        if (pendingWrites.put(key, new Pending(response, receivedAt)) == null) {
+            writer.execute(() -> write(key));
+        }
+    }
+
+    public void saveBot(BotInfo info) {
+        long botId = Long.parseUnsignedLong(info.id());
+        bots.put(botId, info);
+        Instant receivedAt = Instant.now();
+        writer.execute(() -> {
+            try {
+                write(directory.resolve(Long.toUnsignedString(botId) + "." + BOT_INFO + EXTENSION),
+                        CachedResponse.of(mapper.writeValueAsBytes(info), true), receivedAt);
+            } catch (IOException e) {
+                log.error("Failed to write the snapshot of bot {}", info.id(), e);
+            }
+        });
+    }
+
+    private void write(Key key) {
+        Pending pending = pendingWrites.remove(key);
+        if (pending == null || pending.response().etag().equals(writtenEtags.get(key))) {
+            return;
+        }
+        try {
+            write(directory.resolve(key.fileName()), pending.response(), pending.receivedAt());
+            writtenEtags.put(key, pending.response().etag());
+        } catch (IOException e) {
+            log.error("BotId: {}, Failed to write the {} snapshot", Long.toUnsignedString(key.botId()), key.type(), e);
+        }
+    }
+
+    /**
+     * Written to a temporary file that is synced to disk and then replaces the snapshot,
+     * so a crash never leaves a partial snapshot behind.
+     */
+    private void write(Path file, CachedResponse response, Instant receivedAt) throws IOException {
+        Files.createDirectories(directory);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        byte[] etag = response.etag().getBytes(StandardCharsets.US_ASCII);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+             InputStream body = response.stream()) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(receivedAt.toEpochMilli());
+            out.writeBoolean(response.success());
+            out.writeShort(etag.length);
+            out.write(etag);
+            out.writeInt(response.length());
+            body.transferTo(out);
+            out.flush();
+            //otherwise the rename can reach the disk before the data does
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Optional<Snapshot> get(long botId, IpcMessage type) {
+        return Optional.ofNullable(snapshots.get(new Key(botId, type)));
+    }
+
+    /**
+     * @return the age of the response if it was loaded from a snapshot, empty for live responses
+     */
+    public Optional<Duration> staleAge(long botId, IpcMessage type, CachedResponse response) {
+        Snapshot snapshot = snapshots.get(new Key(botId, type));
+        if (snapshot == null || snapshot.response() != response) {
+            return Optional.empty();
+        }
+        return Optional.of(snapshot.age());
+    }
+
+    /**
+     * @return the id of a known bot, connected or not
+     */
+    public Optional<Long> botId(String name) {
+        for (Map.Entry<Long, BotInfo> entry : bots.entrySet()) {
+            if (StringUtils.equals(entry.getValue().name(), name)) {
+                return Optional.of(entry.getKey());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Writes everything that is still queued.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Snapshot writer did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package io.github.srdjanv.autobotserver.javalin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The trades of a bot keyed by offer id, built from a {@code polldata} reply.
+ * Every trade merges its state, timestamp and offer data into one serialized entry,
+ * and is also kept ordered by time, overall and per state and partner, for paginated queries.
+ */
+public class TradeIndex {
+    private static final Trade[] EMPTY = new Trade[0];
+    //numeric offer ids, shorter ids are older
+    private static final Comparator<Trade> BY_TIME = Comparator.comparingLong(Trade::timestamp)
+            .thenComparing(Trade::id, Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder()));
+    //the trade record, its strings, its map entry and its slots in the sorted arrays
+    private static final int TRADE_OVERHEAD = 160;
+
+    private final Map<String, Trade> trades;
+    private final Trade[] byTime;
+    private final Map<Integer, Trade[]> byState;
+    private final Map<String, Trade[]> byPartner;
+    //the full reply the index was built from
+    private final CachedResponse source;
+    private final long weight;
+
+    public record Trade(String id, @Nullable String direction, int state, long timestamp, @Nullable String partner, byte[] json) {
+    }
+
+    /**
+     * @param nextCursor passed as {@code cursor} to get the next page, null if this is the last page
+     */
+    public record Page(List<Trade> trades, @Nullable String nextCursor) {
+    }
+
+    private TradeIndex(Map<String, Trade> trades, CachedResponse source) {
+        this.trades = trades;
+        this.source = source;
+        this.byTime = trades.values().toArray(EMPTY);
+        Arrays.sort(byTime, BY_TIME);
+        this.byState = index(byTime, Trade::state);
+        this.byPartner = index(Arrays.stream(byTime).filter(trade -> trade.partner() != null).toArray(Trade[]::new), Trade::partner);
+        long weight = 0;
+        for (Trade trade : byTime) {
+            weight += TRADE_OVERHEAD + trade.id().length() + (trade.partner() != null ? trade.partner().length() : 0) + trade.json().length;
+        }
+        this.weight = weight;
+    }
+
+    private static <K> Map<K, Trade[]> index(Trade[] sorted, Function<Trade, K> key) {
+        //grouping a sorted array keeps every group sorted
+        return Arrays.stream(sorted).collect(Collectors.groupingBy(key, HashMap::new,
+                Collectors.collectingAndThen(Collectors.toList(), list -> list.toArray(EMPTY))));
+    }
+
+    /**
+     * @return empty if the reply does not contain polldata
+     */
+    public static Optional<TradeIndex> of(ObjectMapper mapper, CachedResponse response) throws IOException {
+        if (!response.success()) {
+            return Optional.empty();
+        }
+        JsonNode data = mapper.readTree(response.stream()).path("data");
+        if (!data.isObject()) {
+            return Optional.empty();
+        }
+        Set<String> ids = new LinkedHashSet<>();
+        for (String section : List.of("sent", "received", "timestamps", "offerData")) {
+            data.path(section).fieldNames().forEachRemaining(ids::add);
+        }
+
+        Map<String, Trade> trades = new HashMap<>(ids.size());
+        for (String id : ids) {
+            String direction = null;
+            JsonNode state = data.path("sent").get(id);
+            if (state != null) {
+                direction = "sent";
+            } else if ((state = data.path("received").get(id)) != null) {
+                direction = "received";
+            }
+            int stateCode = state != null ? state.asInt() : 0;
+            long timestamp = data.path("timestamps").path(id).asLong();
+            JsonNode offerData = data.path("offerData").get(id);
+            String partner = offerData != null ? StringUtils.trimToNull(offerData.path("partner").asText()) : null;
+
+            ObjectNode trade = mapper.createObjectNode();
+            trade.put("id", id);
+            trade.put("direction", direction);
+            trade.put("state", stateCode);
+            trade.put("timestamp", timestamp);
+            trade.set("data", offerData);
+            trades.put(id, new Trade(id, direction, stateCode, timestamp, partner, mapper.writeValueAsBytes(trade)));
+        }
+        return Optional.of(new TradeIndex(trades, response));
+    }
+
+    public boolean builtFrom(CachedResponse response) {
+        return source == response;
+    }
+
+    /**
+     * @return whether the index was built from a reply received after the response
+     */
+    public boolean newerThan(CachedResponse response) {
+        return source.newerThan(response);
+    }
+
+    public Optional<Trade> trade(String id) {
+        return Optional.ofNullable(trades.get(id));
+    }
+
+    public int size() {
+        return trades.size();
+    }
+
+    /**
+     * @return approximate heap size in bytes, without the reply it was built from which is weighed by its cache
+     */
+    public long weight() {
+        return weight;
+    }
+
+    /**
+     * @return the serialized trades keyed by offer id
+     */
+    public Map<String, byte[]> entries() {
+        Map<String, byte[]> entries = new HashMap<>(trades.size());
+        trades.forEach((id, trade) -> entries.put(id, trade.json()));
+        return entries;
+    }
+
+    /**
+     * Lists trades newest first, the time bounds are inclusive and use the unit of the polldata timestamps.
+     *
+     * @param cursor the {@code nextCursor} of the previous page
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public Page query(@Nullable Long from, @Nullable Long to, @Nullable Integer state, @Nullable String partner,
+                      int limit, @Nullable String cursor) throws IllegalArgumentException {
+        //the most selective index is scanned, the other filters are checked per trade
+        Trade[] source;
+        if (partner != null) {
+            source = byPartner.getOrDefault(partner, EMPTY);
+        } else if (state != null) {
+            source = byState.getOrDefault(state, EMPTY);
+        } else {
+            source = byTime;
+        }
+
+        int end = source.length;
+        if (to != null) {
+            end = firstAfter(source, to);
+        }
+        if (cursor != null) {
+            end = Math.min(end, firstNotBefore(source, parseCursor(cursor)));
+        }
+        List<Trade> page = new ArrayList<>(Math.min(limit, end));
+        int i = next(source, end - 1, from, state);
+        while (i >= 0 && page.size() < limit) {
+            page.add(source[i]);
+            i = next(source, i - 1, from, state);
+        }
+        //only a trade that passes every filter after a full page means there is another page
+        String nextCursor = i >= 0 && !page.isEmpty() ? page.getLast().timestamp() + "_" + page.getLast().id() : null;
+        return new Page(page, nextCursor);
+    }
+
+    /**
+     * @return the index of the newest trade at or before start that matches the filters, -1 if there is none
+     */
+    private static int next(Trade[] source, int start, @Nullable Long from, @Nullable Integer state) {
+        for (int i = start; i >= 0; i--) {
+            Trade trade = source[i];
+            if (from != null && trade.timestamp() < from) {
+                return -1;
+            }
+            if (state == null || trade.state() == state) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Trade parseCursor(String cursor) {
+        int separator = cursor.indexOf('_');
+        if (separator < 1 || separator == cursor.length() - 1) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        long timestamp = Long.parseLong(cursor.substring(0, separator));
+        return new Trade(cursor.substring(separator + 1), null, 0, timestamp, null, new byte[0]);
+    }
+
+    private static int firstAfter(Trade[] sorted, long timestamp) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].timestamp() <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int firstNotBefore(Trade[] sorted, Trade bound) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (BY_TIME.compare(sorted[mid], bound) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Steam trade offer states, as stored in the polldata.
+     */
+    public enum OfferState {
+        Invalid(1),
+        Active(2),
+        Accepted(3),
+        Countered(4),
+        Expired(5),
+        Canceled(6),
+        Declined(7),
+        InvalidItems(8),
+        CreatedNeedsConfirmation(9),
+        CanceledBySecondFactor(10),
+        InEscrow(11);
+        private final int state;
+
+        OfferState(int state) {
+            this.state = state;
+        }
+
+        public int state() {
+            return state;
+        }
+
+        public static OfferState from(String name) {
+            for (OfferState value : values()) {
+                if (StringUtils.equalsIgnoreCase(value.name(), name)) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package io.github.srdjanv.autobotserver.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the server metrics, exported in the Prometheus text format.
+ * Metrics are looked up once and then recorded to directly, gauges and collectors are only read when the metrics are scraped.
+ * Labels are passed as alternating names and values.
+ */
+public class Metrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    public enum Type {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    private record Family(String name, String help, Type type, Map<String, Object> series) {
+        private Family(String name, String help, Type type) {
+            this(name, help, type, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    /**
+     * Reports values that are already tracked elsewhere, when the metrics are scraped.
+     */
+    @FunctionalInterface
+    public interface Collector {
+        void collect(Sink sink);
+    }
+
+    @FunctionalInterface
+    public interface Sink {
+        void sample(String name, String help, Type type, double value, String... labels);
+    }
+
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, Type.COUNTER).series().computeIfAbsent(labels(labels), key -> new LongAdder());
+    }
+
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).series().computeIfAbsent(labels(labels), key -> new Histogram(buckets));
+    }
+
+    /**
+     * @param value read when the metrics are scraped, replaces the previous gauge with the same labels
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series().put(labels(labels), value);
+    }
+
+    /**
+     * Removes the gauge, unless it was already replaced by another one.
+     */
+    public void removeGauge(String name, DoubleSupplier value, String... labels) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.series().remove(labels(labels), value);
+        }
+    }
+
+    public void register(Collector collector) {
+        collectors.add(collector);
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (family.type() != type) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type());
+        }
+        return family;
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name value pairs");
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int c = 0; c < value.length(); c++) {
+                char character = value.charAt(c);
+                switch (character) {
+                    case '\\' -> builder.append("\\\\");
+                    case '"' -> builder.append("\\\"");
+                    case '\n' -> builder.append("\\n");
+                    default -> builder.append(character);
+                }
+            }
+            builder.append('"');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     */
+    public String scrape() {
+        Map<String, Family> scraped = new TreeMap<>(families);
+        Map<String, Family> collected = new ConcurrentHashMap<>();
+        for (Collector collector : collectors) {
+            collector.collect((name, help, type, value, labels) -> {
+                Family family = collected.computeIfAbsent(name, key -> new Family(name, help, type));
+                family.series().put(labels(labels), (DoubleSupplier) () -> value);
+            });
+        }
+        collected.forEach(scraped::putIfAbsent);
+
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : scraped.values()) {
+            if (family.series().isEmpty()) {
+                continue;
+            }
+            out.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+            out.append("# TYPE ").append(family.name()).append(' ').append(family.type().name().toLowerCase()).append('\n');
+            family.series().forEach((labels, metric) -> write(out, family.name(), labels, metric));
+        }
+        return out.toString();
+    }
+
+    private static void write(StringBuilder out, String name, String labels, Object metric) {
+        switch (metric) {
+            case LongAdder counter -> sample(out, name, labels, counter.sum());
+            case DoubleSupplier gauge -> sample(out, name, labels, gauge.getAsDouble());
+            case Histogram histogram -> {
+                double[] bounds = histogram.bounds();
+                long[] counts = histogram.cumulativeCounts();
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                for (int i = 0; i < bounds.length; i++) {
+                    sample(out, name + "_bucket", prefix + "le=\"" + bounds[i] + "\"", counts[i]);
+                }
+                long count = counts[counts.length - 1];
+                sample(out, name + "_bucket", prefix + "le=\"+Inf\"", count);
+                sample(out, name + "_sum", labels, histogram.sum());
+                sample(out, name + "_count", labels, count);
+            }
+            default -> throw new IllegalStateException("Unknown metric " + metric);
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}